@@ -23,11 +23,12 @@
  */
 package org.jenkinsci.plugins.lsf;
 
-import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
 import java.io.IOException;
+import java.util.List;
 
 /**
  *
@@ -38,37 +39,93 @@ public abstract class BatchSystem {
     protected final AbstractBuild<?, ?> build;
     protected final Launcher launcher;
     protected final BuildListener listener;
-    // every file created by the batch system should have this name
-    protected final String COMMUNICATION_FILE;
-    protected final CopyToMasterNotifier copyFileToMaster;
-    protected final String masterWorkingDirectory;
+    // the directory (in the slave) where the job is submitted from
+    protected FilePath workingDirectory;
 
     public BatchSystem(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String COMMUNICATION_FILE, 
-            String masterWorkingDirectory) {
-        this.COMMUNICATION_FILE = COMMUNICATION_FILE;
-        this.copyFileToMaster = new CopyToMasterNotifier(COMMUNICATION_FILE,
-                "", true, build.getProject().getRootDir().getAbsolutePath()
-                + "/workspace/", true);
+            BuildListener listener) {
         this.build = build;
         this.launcher = launcher;
         this.listener = listener;
-        this.masterWorkingDirectory = masterWorkingDirectory;
+        this.workingDirectory = build.getWorkspace();
+    }
+
+    public FilePath getWorkingDirectory() {
+        return workingDirectory;
+    }
+
+    public void setWorkingDirectory(FilePath workingDirectory) {
+        this.workingDirectory = workingDirectory;
+    }
+
+    /**
+     * executes the given command in the job's working directory in the slave
+     * through the slave's long running shell
+     *
+     * @param command the command to execute
+     * @return the result of the command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected RemoteShell.Result execute(String command)
+            throws IOException, InterruptedException {
+        return RemoteShell.execute(launcher, workingDirectory, command,
+                getCommandTimeout());
+    }
+
+    /**
+     * @return the time limit of the batch system commands in seconds (zero
+     * for the default limit)
+     */
+    protected int getCommandTimeout() {
+        return 0;
     }
 
     /**
      * submits the the job to the batch system's selected queue and configures
-     * if an email should be sent after the job is done
+     * if an email should be sent after the job is done (the input files are
+     * staged and the job is submitted in one remote operation)
      *
-     * @param jobFileName name of the job file
+     * @param submission the job script and the input files of the job
      * @param sendEmail specifies if an email should be sent
      * @param queueType the batch system's queue type (if it has one)
+     * @param resources the resources requested for the job
      * @return the job id of the submitted job
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract String submitJob(String jobFileName, boolean sendEmail,
-            String queueType) throws InterruptedException, IOException;
+    public abstract String submitJob(JobSubmission submission,
+            boolean sendEmail, String queueType, ResourceRequest resources)
+            throws InterruptedException, IOException;
+
+    /**
+     * submits the job with a submit command which stays attached to the job
+     * until it finishes, so that the job's status doesn't have to be polled
+     *
+     * @param submission the job script and the input files of the job
+     * @param sendEmail specifies if an email should be sent
+     * @param queueType the batch system's queue type (if it has one)
+     * @param resources the resources requested for the job
+     * @param interactive whether the job's output is streamed back through
+     * the submit command (otherwise the submit command only blocks)
+     * @param output receives the output of the submit command
+     * @return the job id of the submitted job
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String submitAttachedJob(JobSubmission submission,
+            boolean sendEmail, String queueType, ResourceRequest resources,
+            boolean interactive, StreamedJobOutput output)
+            throws InterruptedException, IOException;
+
+    /**
+     * @param jobId the id of the job submitted with submitAttachedJob
+     * @return the ending status of the job once it has finished
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String waitForAttachedJob(String jobId)
+            throws InterruptedException, IOException;
 
     /**
      * @param jobId
@@ -84,8 +141,10 @@ public abstract class BatchSystem {
      *
      * @param jobId the identifier of the job
      * @throws InterruptedException
+     * @throws IOException
      */
-    public abstract void killJob(String jobId) throws InterruptedException;
+    public abstract void killJob(String jobId)
+            throws InterruptedException, IOException;
 
     /**
      * executes the appropriate actions depending on the status of the job
@@ -98,63 +157,93 @@ public abstract class BatchSystem {
     /**
      * prints the error log to the slave console
      *
+     * @param jobId the identifier of the job
      * @throws InterruptedException
+     * @throws IOException
      */
-    public abstract void printErrorLog() throws InterruptedException;
+    public abstract void printErrorLog(String jobId)
+            throws InterruptedException, IOException;
 
     /**
-     * prints the exit code to the slave console
-     *
      * @param jobId the identifier of the job
+     * @return the reason why the batch system terminated the job, null if
+     * the job was not terminated by the batch system
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract void printExitCode(String jobId)
+    public abstract String getTerminationReason(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * @param terminationReason
+     * @return true if the job was terminated because of the cluster (for
+     * example a host failure or preemption), so that it can be resubmitted
+     */
+    public abstract boolean isTransientFailure(String terminationReason);
+
+    /**
+     * @param jobId
+     * @return the queue the job was submitted to (null if unknown)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String getJobQueue(String jobId)
+            throws InterruptedException, IOException;
+
+    /**
+     * @return the queue of the jobs submitted without one (null if unknown)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    public abstract String getDefaultQueue()
             throws InterruptedException, IOException;
 
     /**
-     * creates the job output file of the running job in the slave
+     * prints the exit code to the slave console
      *
      * @param jobId the identifier of the job
-     * @param outputFileName name of the created output file
      * @throws InterruptedException
      * @throws IOException
      */
-    public abstract void createJobProgressFile(String jobId,
-            String outputFileName) throws InterruptedException, IOException;
+    public abstract void printExitCode(String jobId)
+            throws InterruptedException, IOException;
 
     /**
-     * creates a formatted job output file of the running job in the slave from
-     * the specified output file (created by createJobProgressFile method)
-     *
-     * @param outputFileName the output file that should be formatted
-     * @param offset number of lines that should be skipped from the given
-     * output file
-     * @param numberOfLines the total amount of lines of the given output file
+     * @param jobId the identifier of the finished job
+     * @return the resource usage of the job
      * @throws InterruptedException
+     * @throws IOException
      */
-    public abstract void createFormattedRunningJobOutputFile(
-            String outputFileName, int offset, int numberOfLines)
+    public abstract JobUsage getJobUsage(String jobId)
             throws InterruptedException, IOException;
 
     /**
-     * creates the final job output file of the finished job in the slave
+     * creates the job output file of the running job in the slave (the file
+     * should contain only the output of the job, so that it grows as the job
+     * prints more output)
      *
      * @param jobId the identifier of the job
-     * @param offset number of lines that should be skipped from the final
-     * output
+     * @param outputFileName name of the created output file
      * @throws InterruptedException
+     * @throws IOException
      */
-    public abstract void createFinishedJobOutputFile(String jobId, int offset)
-            throws InterruptedException;
+    public abstract void createJobProgressFile(String jobId,
+            String outputFileName) throws InterruptedException, IOException;
+
+    /**
+     * @param jobId the identifier of the job
+     * @return the path (relative to the workspace) of the file containing the
+     * final output of the finished job
+     */
+    public abstract String getFinishedJobOutputFile(String jobId);
 
     /**
-     * cleans up the files created by the batch system
      * @param jobId
-     * @throws InterruptedException 
+     * @return the files (relative to the workspace) created by the batch
+     * system for the job, which are deleted after the job
      */
-    public abstract void cleanUpFiles(String jobId) 
-            throws InterruptedException;
+    public abstract List<String> getTemporaryFiles(String jobId);
+
     /**
      * @param jobStatus the status of the job
      * @return true if the given job status is a running status
@@ -0,0 +1,102 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Tracks the failures of the batch system commands of a cluster. After
+ * several failures in a row the breaker opens and the commands are not run
+ * (the callers use the last known results instead) until a single probe is
+ * let through after a delay. A successful probe closes the breaker again.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class CircuitBreaker {
+
+    // how many failures in a row open the breaker
+    private static final int FAILURE_THRESHOLD = 3;
+    // how long the breaker stays open before a probe is let through
+    private static final long OPEN_MILLIS = 30000;
+
+    // the breakers of the clusters (by the cluster name)
+    private static final Map<String, CircuitBreaker> BREAKERS
+            = new HashMap<String, CircuitBreaker>();
+
+    private int failures;
+    // the time until which the breaker is open (zero if closed)
+    private long openUntil;
+    // whether a probe is running while the breaker is open
+    private boolean probing;
+
+    private CircuitBreaker() {
+    }
+
+    /**
+     * @param cluster the name of the cluster
+     * @return the breaker of the cluster
+     */
+    public static synchronized CircuitBreaker get(String cluster) {
+        CircuitBreaker breaker = BREAKERS.get(cluster);
+        if (breaker == null) {
+            breaker = new CircuitBreaker();
+            BREAKERS.put(cluster, breaker);
+        }
+        return breaker;
+    }
+
+    /**
+     * @return true if a command can be run (the breaker is closed or this is
+     * the probe after the open delay)
+     */
+    public synchronized boolean allowRequest() {
+        if (openUntil == 0) {
+            return true;
+        }
+        if (probing || System.currentTimeMillis() < openUntil) {
+            return false;
+        }
+        probing = true;
+        return true;
+    }
+
+    public synchronized boolean isOpen() {
+        return openUntil != 0;
+    }
+
+    public synchronized void recordSuccess() {
+        failures = 0;
+        openUntil = 0;
+        probing = false;
+    }
+
+    public synchronized void recordFailure() {
+        failures++;
+        probing = false;
+        if (failures >= FAILURE_THRESHOLD) {
+            openUntil = System.currentTimeMillis() + OPEN_MILLIS;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Computer;
+import hudson.model.Node;
+import hudson.model.TaskListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Deletes the temporary files of the builds in the background, so that
+ * the builds don't wait for it. The deletions pending for a slave are done
+ * in one remote call and the ones that fail (for example because the slave
+ * is disconnected) are retried periodically a limited number of times.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@Extension
+public class CleanupService extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(CleanupService.class.getName());
+
+    // the pending deletions and the ones being done by the slave name
+    // (both guarded by PENDING)
+    private static final Map<String, List<Deletion>> PENDING
+            = new HashMap<String, List<Deletion>>();
+    private static final Map<String, List<Deletion>> IN_PROGRESS
+            = new HashMap<String, List<Deletion>>();
+    // how many times a deletion is tried before it is given up
+    private static final int MAX_ATTEMPTS = 10;
+
+    public CleanupService() {
+        super("LSF cleanup");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return MIN;
+    }
+
+    /**
+     * schedules the deletion of the files and starts it in the background
+     * (like rm, directories are not deleted)
+     *
+     * @param nodeName the name of the slave (empty for the master)
+     * @param directory the directory of the files in the slave
+     * @param names the names of the files (relative to the directory, the
+     * last part of a name may contain wildcards)
+     */
+    public static void schedule(String nodeName, String directory,
+            List<String> names) {
+        schedule(nodeName, directory, names, false);
+    }
+
+    /**
+     * schedules the deletion of the files and starts it in the background
+     *
+     * @param nodeName the name of the slave (empty for the master)
+     * @param directory the directory of the files in the slave
+     * @param names the names of the files (relative to the directory, the
+     * last part of a name may contain wildcards)
+     * @param recursive whether directories are deleted with their contents
+     * (like rm -rf, for the directories created by the plugin or LSF)
+     */
+    public static void schedule(final String nodeName, String directory,
+            List<String> names, boolean recursive) {
+        synchronized (PENDING) {
+            getDeletions(PENDING, nodeName)
+                    .add(new Deletion(directory, names, recursive));
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                delete(nodeName, take(nodeName, null), true);
+            }
+        });
+    }
+
+    /**
+     * deletes the files pending for the directory in the slave right away
+     * and waits for the deletions of the directory already in progress, so
+     * that a new build doesn't lose its files to an older deletion
+     *
+     * @param nodeName
+     * @param directory
+     * @throws InterruptedException
+     */
+    public static void flush(String nodeName, String directory)
+            throws InterruptedException {
+        List<Deletion> deletions;
+        synchronized (PENDING) {
+            while (isInProgress(nodeName, directory)) {
+                PENDING.wait();
+            }
+            deletions = take(nodeName, directory);
+        }
+        // a failed deletion isn't retried, it could delete the new files
+        delete(nodeName, deletions, false);
+    }
+
+    @Override
+    protected void execute(TaskListener listener)
+            throws IOException, InterruptedException {
+        List<String> nodeNames;
+        synchronized (PENDING) {
+            nodeNames = new ArrayList<String>(PENDING.keySet());
+        }
+        for (String nodeName : nodeNames) {
+            delete(nodeName, take(nodeName, null), true);
+        }
+    }
+
+    private static List<Deletion> getDeletions(
+            Map<String, List<Deletion>> deletionsByNode, String nodeName) {
+        List<Deletion> deletions = deletionsByNode.get(nodeName);
+        if (deletions == null) {
+            deletions = new ArrayList<Deletion>();
+            deletionsByNode.put(nodeName, deletions);
+        }
+        return deletions;
+    }
+
+    private static boolean isInProgress(String nodeName, String directory) {
+        List<Deletion> inProgress = IN_PROGRESS.get(nodeName);
+        if (inProgress != null) {
+            for (Deletion deletion : inProgress) {
+                if (deletion.directory.equals(directory)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * moves the pending deletions of the slave to the ones in progress
+     *
+     * @param nodeName
+     * @param directory only the deletions in this directory are taken (all
+     * if null)
+     * @return the deletions taken
+     */
+    private static List<Deletion> take(String nodeName, String directory) {
+        List<Deletion> deletions = new ArrayList<Deletion>();
+        synchronized (PENDING) {
+            List<Deletion> pending = PENDING.get(nodeName);
+            if (pending == null) {
+                return deletions;
+            }
+            Iterator<Deletion> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                Deletion deletion = iterator.next();
+                if (directory == null
+                        || deletion.directory.equals(directory)) {
+                    deletions.add(deletion);
+                    iterator.remove();
+                }
+            }
+            if (pending.isEmpty()) {
+                PENDING.remove(nodeName);
+            }
+            if (!deletions.isEmpty()) {
+                getDeletions(IN_PROGRESS, nodeName).addAll(deletions);
+            }
+        }
+        return deletions;
+    }
+
+    /**
+     * deletes the taken files of the slave in one remote call
+     *
+     * @param nodeName
+     * @param deletions
+     * @param retry whether failed deletions are tried again later
+     */
+    private static void delete(String nodeName, List<Deletion> deletions,
+            boolean retry) {
+        if (deletions.isEmpty()) {
+            return;
+        }
+        try {
+            Node node = nodeName.isEmpty() ? Jenkins.getInstance()
+                    : Jenkins.getInstance().getNode(nodeName);
+            if (node == null) {
+                // the slave is gone together with its files
+                return;
+            }
+            VirtualChannel channel = node.getChannel();
+            if (channel == null) {
+                throw new IOException("Slave " + nodeName + " is offline");
+            }
+            channel.call(new DeleteFiles(deletions));
+        } catch (Exception e) {
+            List<Deletion> retries = new ArrayList<Deletion>();
+            for (Deletion deletion : deletions) {
+                if (retry && ++deletion.attempts < MAX_ATTEMPTS) {
+                    retries.add(deletion);
+                }
+            }
+            LOGGER.log(Level.WARNING, "Failed to delete files in "
+                    + (nodeName.isEmpty() ? "master" : nodeName) + ", "
+                    + (deletions.size() - retries.size()) + " of "
+                    + deletions.size() + " deletions given up", e);
+            if (!retries.isEmpty()) {
+                synchronized (PENDING) {
+                    getDeletions(PENDING, nodeName).addAll(retries);
+                }
+            }
+        } finally {
+            synchronized (PENDING) {
+                List<Deletion> inProgress = IN_PROGRESS.get(nodeName);
+                inProgress.removeAll(deletions);
+                if (inProgress.isEmpty()) {
+                    IN_PROGRESS.remove(nodeName);
+                }
+                PENDING.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * files to delete in a directory
+     */
+    private static class Deletion implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String directory;
+        private final List<String> names;
+        private final boolean recursive;
+        // how many times the deletion has failed
+        private transient int attempts;
+
+        private Deletion(String directory, List<String> names,
+                boolean recursive) {
+            this.directory = directory;
+            this.names = new ArrayList<String>(names);
+            this.recursive = recursive;
+        }
+    }
+
+    /**
+     * deletes the files in the slave
+     */
+    private static class DeleteFiles
+            extends MasterToSlaveCallable<Void, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<Deletion> deletions;
+
+        private DeleteFiles(List<Deletion> deletions) {
+            this.deletions = deletions;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            for (Deletion deletion : deletions) {
+                for (String name : deletion.names) {
+                    if (name.trim().isEmpty()) {
+                        continue;
+                    }
+                    File file = new File(deletion.directory, name.trim());
+                    if (!file.getName().contains("*")
+                            && !file.getName().contains("?")) {
+                        delete(file.toPath(), deletion.recursive);
+                        continue;
+                    }
+                    File parent = file.getParentFile();
+                    if (!parent.isDirectory()) {
+                        continue;
+                    }
+                    DirectoryStream<Path> matches = Files.newDirectoryStream(
+                            parent.toPath(), file.getName());
+                    try {
+                        for (Path match : matches) {
+                            delete(match, deletion.recursive);
+                        }
+                    } finally {
+                        matches.close();
+                    }
+                }
+            }
+            return null;
+        }
+
+        private static void delete(Path path, boolean recursive)
+                throws IOException {
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (!recursive) {
+                    // like rm, a directory named by the user is kept
+                    return;
+                }
+                DirectoryStream<Path> children = Files.newDirectoryStream(path);
+                try {
+                    for (Path child : children) {
+                        delete(child, true);
+                    }
+                } finally {
+                    children.close();
+                }
+            }
+            Files.deleteIfExists(path);
+        }
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Limits how many duplicates of straggling jobs (see LSFBuilder) a project
+ * runs at the same time, so that hedging can't flood the cluster.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class HedgingBudget {
+
+    // the running duplicate jobs per project
+    private static final Map<String, Integer> RUNNING
+            = new HashMap<String, Integer>();
+
+    /**
+     * takes a place for a duplicate job of the project
+     *
+     * @param project the full name of the project
+     * @param budget how many duplicate jobs the project can run at once
+     * @return true if the duplicate job can be submitted
+     */
+    public static synchronized boolean acquire(String project, int budget) {
+        Integer running = RUNNING.get(project);
+        int count = running == null ? 0 : running;
+        if (count >= budget) {
+            return false;
+        }
+        RUNNING.put(project, count + 1);
+        return true;
+    }
+
+    /**
+     * frees the place of a duplicate job which has ended
+     *
+     * @param project the full name of the project
+     */
+    public static synchronized void release(String project) {
+        Integer running = RUNNING.get(project);
+        if (running == null || running <= 1) {
+            RUNNING.remove(project);
+        } else {
+            RUNNING.put(project, running - 1);
+        }
+    }
+}
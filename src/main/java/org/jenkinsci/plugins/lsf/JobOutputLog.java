@@ -0,0 +1,297 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Stores the output of a job in a compressed file in the build directory and
+ * keeps only a window of it (the first and the last lines) for the console,
+ * so the memory used doesn't depend on the size of the output. Every chunk
+ * of the output is a separate gzip member and the offsets of the members are
+ * written to an index file, so a range of the output can be read without
+ * decompressing everything before it. The log is written and read by
+ * different threads when the output is streamed, so its methods are
+ * synchronized.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobOutputLog {
+
+    // longer lines are truncated in the console (not in the log file)
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    // the size of the uncompressed output in a gzip member of the log
+    public static final int CHUNK_SIZE = 1024 * 1024;
+
+    private final LSFJobOutputAction action;
+    private final CountingOutputStream file;
+    private final DataOutputStream index;
+    // the gzip member of the current chunk
+    private GZIPOutputStream log;
+    private final int headLines;
+    private final int tailLines;
+    // the line that is currently being received
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private boolean lineTruncated = false;
+    // the number of complete lines received
+    private long lines = 0;
+    // the head lines which haven't been printed to the console yet
+    private final StringBuilder consoleText = new StringBuilder();
+    // the last lines after the head
+    private final LinkedList<String> tail = new LinkedList<String>();
+    private long size = 0;
+    // the lines are matched against these patterns until the first match
+    private List<Pattern> failurePatterns = Collections.emptyList();
+    private List<Pattern> successPatterns = Collections.emptyList();
+    private String matchedLine;
+    private boolean successMatched = false;
+    private boolean closed = false;
+
+    /**
+     * @param action the build action which serves the log file
+     * @param headLines how many first lines are printed to the console
+     * @param tailLines how many last lines are printed to the console
+     * @throws IOException
+     */
+    public JobOutputLog(LSFJobOutputAction action, int headLines,
+            int tailLines) throws IOException {
+        this.action = action;
+        this.headLines = headLines;
+        this.tailLines = tailLines;
+        this.file = new CountingOutputStream(
+                new FileOutputStream(action.getLogFile()));
+        this.index = new DataOutputStream(
+                new FileOutputStream(action.getIndexFile()));
+        startChunk();
+    }
+
+    /**
+     * starts a new gzip member in the log and writes its offset to the index
+     */
+    private void startChunk() throws IOException {
+        index.writeLong(file.getCount());
+        index.flush();
+        // sync flush makes the written output readable before closing
+        log = new GZIPOutputStream(file, 8192, true);
+    }
+
+    /**
+     * appends the given output of the job to the log
+     *
+     * @param data
+     * @throws IOException
+     */
+    public synchronized void write(byte[] data) throws IOException {
+        int offset = 0;
+        while (offset < data.length) {
+            if (size > 0 && size % CHUNK_SIZE == 0) {
+                // the trailer ends the member, the file stays open
+                log.finish();
+                startChunk();
+            }
+            int length = (int) Math.min(data.length - offset,
+                    CHUNK_SIZE - size % CHUNK_SIZE);
+            log.write(data, offset, length);
+            offset += length;
+            size += length;
+        }
+        log.flush();
+        action.setSize(size);
+        for (byte b : data) {
+            if (b == '\n') {
+                endLine();
+            } else if (line.size() < MAX_LINE_LENGTH) {
+                line.write(b);
+            } else {
+                lineTruncated = true;
+            }
+        }
+    }
+
+    private void endLine() throws IOException {
+        String text = line.toString("UTF-8");
+        if (lineTruncated) {
+            text = text + " [...]";
+        }
+        line.reset();
+        lineTruncated = false;
+        lines++;
+        if (matchedLine == null) {
+            match(text);
+        }
+        if (lines <= headLines) {
+            consoleText.append(text).append('\n');
+        } else if (tailLines > 0) {
+            tail.addLast(text);
+            if (tail.size() > tailLines) {
+                tail.removeFirst();
+            }
+        }
+    }
+
+    /**
+     * matches every following line of the output against the given patterns
+     *
+     * @param failurePatterns patterns of lines which show that the job fails
+     * @param successPatterns patterns of lines which show that the job
+     * succeeds
+     */
+    public synchronized void watch(List<Pattern> failurePatterns,
+            List<Pattern> successPatterns) {
+        this.failurePatterns = failurePatterns;
+        this.successPatterns = successPatterns;
+    }
+
+    private void match(String text) {
+        for (Pattern pattern : failurePatterns) {
+            if (pattern.matcher(text).find()) {
+                matchedLine = text;
+                return;
+            }
+        }
+        for (Pattern pattern : successPatterns) {
+            if (pattern.matcher(text).find()) {
+                matchedLine = text;
+                successMatched = true;
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return the first line which matched a watched pattern or null
+     */
+    public synchronized String getMatchedLine() {
+        return matchedLine;
+    }
+
+    /**
+     * @return true if the matched line was matched by a success pattern
+     */
+    public synchronized boolean isSuccessMatched() {
+        return successMatched;
+    }
+
+    /**
+     * @return the head lines received since the last call
+     */
+    public synchronized String takeConsoleText() {
+        String text = consoleText.toString();
+        consoleText.setLength(0);
+        return text;
+    }
+
+    /**
+     * closes the log file
+     *
+     * @return the remaining text for the console (the rest of the head, the
+     * number of omitted lines and the tail), empty if the log was already
+     * closed
+     * @throws IOException
+     */
+    public synchronized String close() throws IOException {
+        if (closed) {
+            return "";
+        }
+        closed = true;
+        if (line.size() > 0 || lineTruncated) {
+            endLine();
+        }
+        log.close();
+        index.close();
+        StringBuilder text = new StringBuilder(takeConsoleText());
+        long omittedLines = lines - headLines - tail.size();
+        if (omittedLines > 0) {
+            text.append("[...] ").append(omittedLines)
+                    .append(" lines omitted [...]\n");
+        }
+        for (String tailLine : tail) {
+            text.append(tailLine).append('\n');
+        }
+        tail.clear();
+        return text.toString();
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return the number of bytes written to the log
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * counts the bytes written to the log file, the offsets of the gzip
+     * members
+     */
+    private static class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private long count = 0;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        private long getCount() {
+            return count;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length)
+                throws IOException {
+            out.write(data, offset, length);
+            count += length;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,366 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.Computer;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.util.Timer;
+
+/**
+ * Packs the short jobs of different builds which are submitted from the
+ * same slave with the same options within a time window into one LSF job.
+ * The packed job runs the job scripts one after another (or in parallel),
+ * each in its own temporary directory, and writes the output and the exit
+ * code of every script into the directory of its build.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobPacker {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(JobPacker.class.getName());
+
+    // the files (in the directory of the build) with the output and the
+    // exit code of a packed job script, followed by the build
+    private static final String OUTPUT_FILE = "jobPackOutput-";
+    private static final String EXIT_CODE_FILE = "jobPackExitCode-";
+
+    public static final int DEFAULT_MAX_PACK_SIZE = 20;
+    // the longest median run time (in seconds) of a project's jobs for its
+    // jobs to be packed
+    public static final int DEFAULT_MAX_RUN_TIME = 300;
+
+    // the packers of the clusters (by the cluster name)
+    private static final Map<String, JobPacker> PACKERS
+            = new HashMap<String, JobPacker>();
+
+    private static final Random RANDOM = new Random();
+
+    private final int windowSeconds;
+    private final int maxPackSize;
+    private final boolean parallel;
+    // the packs which still accept jobs (by the slave and the command)
+    private final Map<String, Pack> open = new HashMap<String, Pack>();
+
+    private JobPacker(int windowSeconds, int maxPackSize, boolean parallel) {
+        this.windowSeconds = windowSeconds;
+        this.maxPackSize = Math.max(1, maxPackSize);
+        this.parallel = parallel;
+    }
+
+    /**
+     * @param cluster the name of the cluster
+     * @param windowSeconds how long a pack waits for more jobs
+     * @param maxPackSize how many jobs a pack has at most
+     * @param parallel whether the jobs of a pack run in parallel
+     * @return the packer of the cluster (a new one if the settings have
+     * changed)
+     */
+    public static synchronized JobPacker get(String cluster,
+            int windowSeconds, int maxPackSize, boolean parallel) {
+        JobPacker packer = PACKERS.get(cluster);
+        if (packer == null || packer.windowSeconds != windowSeconds
+                || packer.maxPackSize != maxPackSize
+                || packer.parallel != parallel) {
+            packer = new JobPacker(windowSeconds, maxPackSize, parallel);
+            PACKERS.put(cluster, packer);
+        }
+        return packer;
+    }
+
+    /**
+     * adds the job to a pack and waits until the pack has been submitted
+     *
+     * @param dispatcher submits the pack
+     * @param channel the channel of the slave the job is submitted from
+     * @param command the submit command without the job name and the
+     * resources
+     * @param resources the resources requested for the job, the pack
+     * requests them scaled to its size
+     * @param submission the job script and the input files of the job
+     * @param runId the externalizable id of the build
+     * @param logger the console of the build
+     * @return the output of the submit command of the pack
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public String submit(final SubmissionDispatcher dispatcher,
+            final VirtualChannel channel, final String command,
+            final ResourceRequest resources, JobSubmission submission,
+            String runId, PrintStream logger)
+            throws IOException, InterruptedException {
+        final String key = channel.hashCode() + "\n" + command + "\n"
+                + resources.toBsubOptions();
+        final Pack pack;
+        boolean full;
+        synchronized (this) {
+            Pack current = open.get(key);
+            if (current == null) {
+                current = new Pack();
+                open.put(key, current);
+                // the pack is submitted when the window closes
+                final Pack opened = current;
+                Timer.get().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (seal(key, opened)) {
+                            submitInBackground(dispatcher, channel, command,
+                                    resources, opened);
+                        }
+                    }
+                }, windowSeconds, TimeUnit.SECONDS);
+            }
+            pack = current;
+            pack.add(submission, runId);
+            full = pack.size() >= maxPackSize;
+        }
+        if (full && seal(key, pack)) {
+            submitInBackground(dispatcher, channel, command, resources,
+                    pack);
+        }
+        logger.println("Waiting up to " + windowSeconds + " seconds for "
+                + "other jobs to pack with");
+        try {
+            return pack.getOutput();
+        } catch (InterruptedException e) {
+            // the job is not submitted if the pack is still open
+            synchronized (this) {
+                if (open.get(key) == pack) {
+                    pack.remove(submission);
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return true if the pack was still open (and is now closed)
+     */
+    private synchronized boolean seal(String key, Pack pack) {
+        if (open.get(key) != pack) {
+            return false;
+        }
+        open.remove(key);
+        return true;
+    }
+
+    private void submitInBackground(final SubmissionDispatcher dispatcher,
+            final VirtualChannel channel, final String command,
+            final ResourceRequest resources, final Pack pack) {
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                pack.submit(dispatcher, channel, command, resources,
+                        parallel);
+            }
+        });
+    }
+
+    /**
+     * @param runId the externalizable id of the build
+     * @return the file with the output of the build's packed job script
+     * (the concurrent builds of a project may share the directory)
+     */
+    public static String getOutputFile(String runId) {
+        return OUTPUT_FILE + toFileName(runId);
+    }
+
+    /**
+     * @param runId the externalizable id of the build
+     * @return the file with the exit code of the build's packed job script
+     */
+    public static String getExitCodeFile(String runId) {
+        return EXIT_CODE_FILE + toFileName(runId);
+    }
+
+    private static String toFileName(String runId) {
+        return runId.replaceAll("[^A-Za-z0-9._-]", "_");
+    }
+
+    /**
+     * @param submissions the jobs of the pack
+     * @param runIds the externalizable ids of the jobs' builds
+     * @param parallel whether the jobs run in parallel
+     * @return the script of the pack, which runs the job scripts in their
+     * own temporary directories with their outputs and exit codes in the
+     * directories of the builds
+     */
+    static String createPackScript(List<JobSubmission> submissions,
+            List<String> runIds, boolean parallel) {
+        StringBuilder script = new StringBuilder();
+        for (int i = 0; i < submissions.size(); i++) {
+            JobSubmission submission = submissions.get(i);
+            String directory = submission.getDirectory() + "/";
+            String outputFile = directory + getOutputFile(runIds.get(i));
+            String exitCodeFile = directory + getExitCodeFile(runIds.get(i));
+            String end = "LSF_PACK_END_" + Long.toHexString(RANDOM.nextLong());
+            script.append("(\n(\n")
+                    .append("export LS_SUBCWD=")
+                    .append(RemoteShell.quote(submission.getDirectory()))
+                    .append("\nwork=$(mktemp -d) && cd \"$work\" || exit 1\n")
+                    .append("/bin/bash <<'").append(end).append("'\n")
+                    .append(submission.getScript());
+            if (!submission.getScript().endsWith("\n")) {
+                script.append('\n');
+            }
+            script.append(end).append('\n')
+                    .append("status=$?\nrm -rf \"$work\"\nexit $status\n")
+                    .append(") > ")
+                    .append(RemoteShell.quote(outputFile))
+                    .append(" 2>&1\n")
+                    // the exit code appears at once when it is complete
+                    .append("echo $? > ").append(RemoteShell.quote(
+                            exitCodeFile + ".tmp"))
+                    .append("\nmv ").append(RemoteShell.quote(
+                            exitCodeFile + ".tmp"))
+                    .append(' ').append(RemoteShell.quote(exitCodeFile))
+                    .append("\n)").append(parallel ? " &\n" : "\n");
+        }
+        if (parallel) {
+            script.append("wait\n");
+        }
+        return script.toString();
+    }
+
+    /**
+     * the jobs packed into one LSF job
+     */
+    private static class Pack {
+
+        private final List<JobSubmission> submissions
+                = new ArrayList<JobSubmission>();
+        private final List<String> runIds = new ArrayList<String>();
+        private boolean done;
+        private String output;
+        private IOException error;
+
+        private synchronized void add(JobSubmission submission,
+                String runId) {
+            submissions.add(submission);
+            runIds.add(runId);
+        }
+
+        private synchronized void remove(JobSubmission submission) {
+            int index = submissions.indexOf(submission);
+            if (index >= 0) {
+                submissions.remove(index);
+                runIds.remove(index);
+            }
+        }
+
+        private synchronized int size() {
+            return submissions.size();
+        }
+
+        /**
+         * submits the pack (the input files of all the jobs are staged by
+         * the same remote operation)
+         */
+        private void submit(SubmissionDispatcher dispatcher,
+                VirtualChannel channel, String command,
+                ResourceRequest resources, boolean parallel) {
+            List<JobSubmission> members;
+            List<String> names;
+            synchronized (this) {
+                members = new ArrayList<JobSubmission>(submissions);
+                names = new ArrayList<String>(runIds);
+            }
+            if (members.isEmpty()) {
+                complete(null, null);
+                return;
+            }
+            JobSubmission pack = new JobSubmission(
+                    members.get(0).getDirectory(),
+                    createPackScript(members, names, parallel));
+            for (JobSubmission member : members) {
+                member.moveFilesTo(pack);
+            }
+            pack.setTimeout(members.get(0).getTimeout());
+            // every job of the pack gets the resources of one job
+            pack.setCommand(command + " "
+                    + resources.forPack(members.size(), parallel)
+                            .toBsubOptions() + "-J "
+                    + RemoteShell.quote(LSFJobReaper.getPackJobName(names)));
+            try {
+                complete(dispatcher.submit(channel, pack,
+                        new PrintStream(new NullOutputStream())), null);
+            } catch (IOException e) {
+                complete(null, e);
+            } catch (InterruptedException e) {
+                complete(null, new IOException("Interrupted while "
+                        + "submitting the packed job"));
+            } catch (RuntimeException e) {
+                LOGGER.log(Level.WARNING, "Failed to submit a packed job", e);
+                complete(null, new IOException(e.getMessage()));
+            } finally {
+                pack.close();
+            }
+        }
+
+        private synchronized void complete(String output,
+                IOException error) {
+            this.output = output;
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized String getOutput()
+                throws IOException, InterruptedException {
+            while (!done) {
+                wait();
+            }
+            if (error != null) {
+                throw error;
+            }
+            return output;
+        }
+    }
+
+    /**
+     * discards the messages of the dispatcher about the packed job (the
+     * builds print the output of the submit command themselves)
+     */
+    private static class NullOutputStream extends OutputStream {
+
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] data, int offset, int length) {
+        }
+    }
+}
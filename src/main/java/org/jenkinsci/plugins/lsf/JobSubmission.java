@@ -0,0 +1,388 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.remoting.RemoteInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * Submits a job in a single remote operation: the input files are streamed
+ * from the master into the job's directory in the slave and the submit
+ * command is run with the job script on its standard input. Without a
+ * submit command only the input files are staged.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class JobSubmission extends MasterToSlaveCallable<String, IOException> {
+
+    private static final long serialVersionUID = 1L;
+
+    // the directory (in the slave) where the job is submitted from
+    private final String directory;
+    private final String script;
+    // the input files (names and contents)
+    private final List<String> fileNames = new ArrayList<String>();
+    private final List<InputStream> files = new ArrayList<InputStream>();
+    // the paths of the input files which are linked instead of copied when
+    // they are visible in the slave (null when the file is always copied)
+    private final List<String> sources = new ArrayList<String>();
+    // the size, the modification time and the hash of each source, which
+    // identify the same file in the slave
+    private final List<Long> sizes = new ArrayList<Long>();
+    private final List<Long> modified = new ArrayList<Long>();
+    private final List<String> digests = new ArrayList<String>();
+    // additional options of the submit command
+    private String options = "";
+    // the submit command, reads the job script from standard input
+    private String command;
+    // how long the submit command can run in seconds (zero for no limit,
+    // an attached submit command runs as long as its job)
+    private int timeout;
+    // receives the output of a submit command attached to its job
+    private OutputStream output;
+    // whether the job can be packed with the jobs of other builds
+    private transient boolean packable = false;
+
+    public JobSubmission(String directory, String script) {
+        this.directory = directory;
+        this.script = script;
+    }
+
+    /**
+     * adds an input file which is written to the job's directory
+     *
+     * @param name the name of the file in the job's directory
+     * @param content the content of the file (closed after the submission)
+     */
+    public void addFile(String name, InputStream content) {
+        fileNames.add(name);
+        files.add(new RemoteInputStream(content));
+        sources.add(null);
+        sizes.add(-1L);
+        modified.add(-1L);
+        digests.add(null);
+    }
+
+    /**
+     * adds an input file which is hard-linked into the job's directory if
+     * the slave sees the same file at the source path, otherwise the file is
+     * written from its content. Only read-only files are linked, a job
+     * writing to a linked file would change the master's file.
+     *
+     * @param name the name of the file in the job's directory
+     * @param content the content of the file (closed after the submission)
+     * @param source the path of the file in the master
+     * @throws IOException
+     */
+    public void addFile(String name, InputStream content, String source)
+            throws IOException {
+        File file = source != null ? new File(source) : null;
+        if (file == null || !file.isFile() || file.canWrite()) {
+            addFile(name, content);
+            return;
+        }
+        fileNames.add(name);
+        files.add(new RemoteInputStream(content));
+        sources.add(source);
+        sizes.add(file.length());
+        modified.add(file.lastModified());
+        digests.add(digest(file));
+    }
+
+    public String getDirectory() {
+        return directory;
+    }
+
+    public String getScript() {
+        return script;
+    }
+
+    public List<String> getFileNames() {
+        return fileNames;
+    }
+
+    public String getOptions() {
+        return options;
+    }
+
+    public void setOptions(String options) {
+        this.options = options;
+    }
+
+    public void setCommand(String command) {
+        this.command = command;
+    }
+
+    public int getTimeout() {
+        return timeout;
+    }
+
+    public void setTimeout(int timeout) {
+        this.timeout = timeout;
+    }
+
+    public boolean isPackable() {
+        return packable;
+    }
+
+    public void setPackable(boolean packable) {
+        this.packable = packable;
+    }
+
+    /**
+     * moves the input files to another submission, which writes them to the
+     * directory of this submission
+     *
+     * @param target
+     */
+    public void moveFilesTo(JobSubmission target) {
+        for (int i = 0; i < files.size(); i++) {
+            target.fileNames.add(
+                    new File(directory, fileNames.get(i)).getPath());
+            target.files.add(files.get(i));
+            target.sources.add(sources.get(i));
+            target.sizes.add(sizes.get(i));
+            target.modified.add(modified.get(i));
+            target.digests.add(digests.get(i));
+        }
+        clearFiles();
+    }
+
+    private void clearFiles() {
+        files.clear();
+        fileNames.clear();
+        sources.clear();
+        sizes.clear();
+        modified.clear();
+        digests.clear();
+    }
+
+    /**
+     * streams the output of the submit command to the given stream instead
+     * of returning it
+     *
+     * @param output the stream (exported to the slave)
+     */
+    public void setOutput(OutputStream output) {
+        this.output = output;
+    }
+
+    /**
+     * closes the input file streams after they have been written to the
+     * slave, so that the submission can be retried without them
+     */
+    public void filesStaged() {
+        close();
+        clearFiles();
+    }
+
+    /**
+     * closes the input file streams (in the master)
+     */
+    public void close() {
+        for (InputStream file : files) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // the stream is not needed anymore
+            }
+        }
+    }
+
+    /**
+     * @return the output of the submit command (or its exit code if the
+     * output is streamed, empty if there is no submit command)
+     * @throws TimeoutException if the submit command ran out of time
+     * @throws IOException
+     */
+    @Override
+    public String call() throws IOException {
+        byte[] buffer = new byte[64 * 1024];
+        new File(directory).mkdirs();
+        for (int i = 0; i < files.size(); i++) {
+            InputStream in = files.get(i);
+            // the files moved from other submissions have absolute names
+            File target = new File(fileNames.get(i)).isAbsolute()
+                    ? new File(fileNames.get(i))
+                    : new File(directory, fileNames.get(i));
+            target.getParentFile().mkdirs();
+            if (link(sources.get(i), sizes.get(i), modified.get(i),
+                    digests.get(i), target)) {
+                in.close();
+                continue;
+            }
+            OutputStream out = new FileOutputStream(target);
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, n);
+                }
+            } finally {
+                out.close();
+                in.close();
+            }
+        }
+        if (command == null) {
+            return "";
+        }
+        // a hanging submit command is killed like the other LSF commands
+        // (see RemoteShell)
+        boolean limited = timeout > 0 && output == null;
+        List<String> commandLine = new ArrayList<String>();
+        if (limited) {
+            commandLine.addAll(Arrays.asList("timeout", "-k", "5",
+                    String.valueOf(timeout)));
+        }
+        commandLine.addAll(Arrays.asList("/bin/bash", "-c", command));
+        ProcessBuilder builder = new ProcessBuilder(commandLine);
+        builder.directory(new File(directory));
+        builder.redirectErrorStream(true);
+        Process process = builder.start();
+        OutputStream stdin = process.getOutputStream();
+        stdin.write(script.getBytes("UTF-8"));
+        stdin.close();
+        InputStream stdout = process.getInputStream();
+        OutputStream out = output != null ? output
+                : new ByteArrayOutputStream();
+        int n;
+        try {
+            while ((n = stdout.read(buffer)) >= 0) {
+                out.write(buffer, 0, n);
+                out.flush();
+            }
+        } finally {
+            out.close();
+        }
+        int exitCode;
+        try {
+            exitCode = process.waitFor();
+        } catch (InterruptedException e) {
+            process.destroy();
+            throw new InterruptedIOException("Interrupted while submitting "
+                    + "the job");
+        }
+        if (output != null) {
+            return String.valueOf(exitCode);
+        }
+        String result = ((ByteArrayOutputStream) out).toString("UTF-8");
+        if (limited && exitCode == RemoteShell.TIMEOUT_EXIT_CODE
+                && LSF.parseJobId(result) == null) {
+            throw new TimeoutException("The submit command timed out after "
+                    + timeout + " seconds");
+        }
+        return result;
+    }
+
+    /**
+     * @param source the path of the input file in the master
+     * @param size the size of the input file in the master
+     * @param lastModified the modification time of the file in the master
+     * @param digest the hash of the file in the master
+     * @param target the input file in the job's directory
+     * @return true if the target was hard-linked to the source
+     */
+    private static boolean link(String source, long size, long lastModified,
+            String digest, File target) {
+        if (source == null) {
+            return false;
+        }
+        // the file at the same path is the master's file only if its
+        // content is the same
+        File file = new File(source);
+        try {
+            if (!file.isFile() || file.length() != size
+                    || file.lastModified() != lastModified
+                    || !digest(file).equals(digest)) {
+                return false;
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        try {
+            Files.deleteIfExists(target.toPath());
+            Files.createLink(target.toPath(), new File(source).toPath());
+            return true;
+        } catch (IOException e) {
+            // the source is on a different filesystem, the file is copied
+            return false;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param file
+     * @return the SHA-256 hash of the file's content
+     * @throws IOException
+     */
+    private static String digest(File file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                digest.update(buffer, 0, n);
+            }
+        } finally {
+            in.close();
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest()) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * thrown when the submit command is killed by its timeout
+     */
+    public static class TimeoutException extends IOException {
+
+        private static final long serialVersionUID = 1L;
+
+        public TimeoutException(String message) {
+            super(message);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The resource usage of a finished batch system job. Unknown values are
+ * negative.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@ExportedBean
+public class JobUsage {
+
+    private final String jobId;
+    private String queue;
+    // CPU time used by the job in seconds
+    private double cpuTime = -1;
+    // maximum memory and swap used by the job in megabytes
+    private double maxMemory = -1;
+    private double maxSwap = -1;
+    // time spent pending and running in seconds
+    private long pendingTime = -1;
+    private long runTime = -1;
+    private List<String> executionHosts = new ArrayList<String>();
+    private List<String> pendingReasons = new ArrayList<String>();
+
+    public JobUsage(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @param usage the usage to copy
+     */
+    protected JobUsage(JobUsage usage) {
+        this.jobId = usage.jobId;
+        this.queue = usage.queue;
+        this.cpuTime = usage.cpuTime;
+        this.maxMemory = usage.maxMemory;
+        this.maxSwap = usage.maxSwap;
+        this.pendingTime = usage.pendingTime;
+        this.runTime = usage.runTime;
+        this.executionHosts = new ArrayList<String>(usage.executionHosts);
+        this.pendingReasons = new ArrayList<String>(usage.pendingReasons);
+    }
+
+    @Exported
+    public String getJobId() {
+        return jobId;
+    }
+
+    @Exported
+    public String getQueue() {
+        return queue;
+    }
+
+    void setQueue(String queue) {
+        this.queue = queue;
+    }
+
+    @Exported
+    public double getCpuTime() {
+        return cpuTime;
+    }
+
+    void setCpuTime(double cpuTime) {
+        this.cpuTime = cpuTime;
+    }
+
+    @Exported
+    public double getMaxMemory() {
+        return maxMemory;
+    }
+
+    void setMaxMemory(double maxMemory) {
+        this.maxMemory = maxMemory;
+    }
+
+    @Exported
+    public double getMaxSwap() {
+        return maxSwap;
+    }
+
+    void setMaxSwap(double maxSwap) {
+        this.maxSwap = maxSwap;
+    }
+
+    @Exported
+    public long getPendingTime() {
+        return pendingTime;
+    }
+
+    void setPendingTime(long pendingTime) {
+        this.pendingTime = pendingTime;
+    }
+
+    @Exported
+    public long getRunTime() {
+        return runTime;
+    }
+
+    void setRunTime(long runTime) {
+        this.runTime = runTime;
+    }
+
+    @Exported
+    public List<String> getExecutionHosts() {
+        return Collections.unmodifiableList(executionHosts);
+    }
+
+    void addExecutionHost(String host) {
+        if (!executionHosts.contains(host)) {
+            executionHosts.add(host);
+        }
+    }
+
+    @Exported
+    public List<String> getPendingReasons() {
+        return Collections.unmodifiableList(pendingReasons);
+    }
+
+    void addPendingReason(String reason) {
+        if (!pendingReasons.contains(reason)) {
+            pendingReasons.add(reason);
+        }
+    }
+
+    /**
+     * @return a one line summary of the usage for the console
+     */
+    public String getSummary() {
+        return "CPU time: " + format(cpuTime, " s")
+                + ", max memory: " + format(maxMemory, " MB")
+                + ", max swap: " + format(maxSwap, " MB")
+                + ", pending time: " + format(pendingTime, " s")
+                + ", run time: " + format(runTime, " s")
+                + ", execution hosts: " + executionHosts;
+    }
+
+    private static String format(double value, String unit) {
+        if (value < 0) {
+            return "unknown";
+        }
+        if (value == Math.rint(value)) {
+            return (long) value + unit;
+        }
+        return String.format("%.1f", value) + unit;
+    }
+}
@@ -24,18 +24,20 @@
 package org.jenkinsci.plugins.lsf;
 
 import hudson.Launcher;
+import hudson.remoting.Future;
+import hudson.remoting.RemoteOutputStream;
 import hudson.model.AbstractBuild;
 import hudson.model.BuildListener;
-import hudson.model.TaskListener;
-import hudson.tasks.Shell;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileReader;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
-import jenkins.util.BuildListenerAdapter;
-import org.apache.commons.io.FileUtils;
+import java.util.concurrent.ExecutionException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  *
@@ -44,64 +46,300 @@ import org.apache.commons.io.FileUtils;
 public class LSF extends BatchSystem {
 
     private static final Set ENDING_STATES = new HashSet();
+    // the termination reasons of jobs killed because of the cluster (not
+    // because of the job), which can be resubmitted
+    private static final Set<String> TRANSIENT_TERMINATIONS
+            = new HashSet<String>();
+
+    // patterns for the resource usage in the outputs of bjobs -l and bhist -l
+    private static final Pattern QUEUE = Pattern.compile("Queue <([^>]*)>");
+    private static final Pattern CPU_TIME
+            = Pattern.compile("CPU time used is ([0-9.]+) seconds");
+    private static final Pattern MAX_MEMORY = Pattern.compile(
+            "MAX MEM: ([0-9.]+) ([KMGT])bytes");
+    private static final Pattern MAX_SWAP = Pattern.compile(
+            "(?:MAX )?SWAP: ([0-9.]+) ([KMGT])bytes");
+    private static final Pattern STARTED = Pattern.compile(
+            "Started (?:[0-9]+ Task\\(s\\) )?on ([^;]*?)(?:, Execution|;)");
+    private static final Pattern ANGLE_BRACKETS = Pattern.compile("<([^>]*)>");
+    private static final Pattern TERMINATION_REASON
+            = Pattern.compile("\\b(TERM_[A-Z_]+)\\b");
+    // the job id in the output of bsub
+    private static final Pattern JOB_ID = Pattern.compile(
+            "Job <([0-9]+)> is submitted");
+    private static final Pattern TIME_SUMMARY = Pattern.compile(
+            "PEND\\s+PSUSP\\s+RUN\\s+USUSP\\s+SSUSP\\s+UNKWN\\s+TOTAL\\s+"
+            + "([0-9]+)\\s+([0-9]+)\\s+([0-9]+)");
+    private static final Pattern PENDING_REASON
+            = Pattern.compile("Pending: ([^;\\n]*)");
+    private static final Pattern DEFAULT_QUEUES
+            = Pattern.compile("Default Queues:\\s+(\\S+)");
+    private static final Pattern PENDING_REASONS
+            = Pattern.compile("PENDING REASONS:\\n((?: .*\\n?)*)");
 
     static {
         ENDING_STATES.add("DONE");
         ENDING_STATES.add("EXIT");
+        TRANSIENT_TERMINATIONS.add("TERM_PREEMPT");
+        TRANSIENT_TERMINATIONS.add("TERM_ZOMBIE");
+        TRANSIENT_TERMINATIONS.add("TERM_LOAD");
+        TRANSIENT_TERMINATIONS.add("TERM_WINDOW");
+        TRANSIENT_TERMINATIONS.add("TERM_UNKNOWN");
+        TRANSIENT_TERMINATIONS.add("TERM_ORPHAN_SYSTEM");
+        TRANSIENT_TERMINATIONS.add("TERM_RMS");
+        TRANSIENT_TERMINATIONS.add("TERM_REMOVE_HUNG_JOB");
     }
 
-    private static final BuildListenerAdapter fakeListener
-            = new BuildListenerAdapter(TaskListener.NULL);
+    // the cloud of the build (null if the build doesn't use one)
+    private final LSFCloud cloud;
+    // the breaker of the cluster's status queries
+    private final CircuitBreaker breaker;
+    // the last known status of the jobs and when the status of any job
+    // was last queried successfully
+    private final Map<String, String> lastStatuses
+            = new HashMap<String, String>();
+    private long lastStatusTime = System.currentTimeMillis();
+    // the default queue of the cluster (empty if it couldn't be found)
+    private String defaultQueue;
+    // the running submit command of a job attached to the build
+    private JobSubmission attachedSubmission;
+    private Future<String> attachedJob;
+    private StreamedJobOutput attachedOutput;
+    // how long the rest of the output is waited for after the job's end
+    private static final long OUTPUT_CLOSE_MILLIS = 10000;
 
     public LSF(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String COMMUNICATION_FILE, 
-            String masterWorkingDirectory) {
-        super(build, launcher, listener, COMMUNICATION_FILE, 
-                masterWorkingDirectory);
+            BuildListener listener) {
+        super(build, launcher, listener);
+        cloud = LSFCloud.getCloud(build.getProject().getAssignedLabel());
+        breaker = CircuitBreaker.get(cloud != null
+                ? cloud.getHostname() + ":" + cloud.getPort() : "");
+    }
+
+    @Override
+    protected int getCommandTimeout() {
+        return cloud != null ? cloud.getCommandTimeoutSeconds()
+                : LSFCloud.DEFAULT_COMMAND_TIMEOUT;
     }
 
     @Override
-    public String submitJob(String jobFileName, boolean sendEmail,
-            String queueType) throws InterruptedException, IOException {
+    public String submitJob(JobSubmission submission, boolean sendEmail,
+            String queueType, ResourceRequest resources)
+            throws InterruptedException, IOException {
 
+        submission.setCommand(getSubmitCommand(submission, sendEmail,
+                queueType, resources));
+        submission.setTimeout(getCommandTimeout());
+        // the submissions to the same cluster are limited and sent together
+        SubmissionDispatcher dispatcher = getDispatcher();
+        String output;
+        try {
+            if (isPacked(submission)) {
+                // the outputs of the packed jobs are written by the pack
+                output = cloud.getJobPacker().submit(dispatcher,
+                        launcher.getChannel(), getPackCommand(submission,
+                                sendEmail, queueType), resources,
+                        submission, build.getExternalizableId(),
+                        listener.getLogger());
+            } else {
+                output = dispatcher.submit(launcher.getChannel(), submission,
+                        listener.getLogger());
+            }
+        } finally {
+            submission.close();
+        }
+        listener.getLogger().println(output);
+
+        // stores the job id
+        String jobId = parseJobId(output);
+        if (jobId == null) {
+            throw new IOException("LSF rejected the job submission");
+        }
+        return jobId;
+    }
+
+    /**
+     * @return the dispatcher which limits the submissions to the cluster
+     */
+    private SubmissionDispatcher getDispatcher() {
+        return cloud != null ? cloud.getSubmissionDispatcher()
+                : SubmissionDispatcher.get("",
+                        SubmissionDispatcher.DEFAULT_MAX_CONCURRENT,
+                        SubmissionDispatcher.DEFAULT_MAX_PER_SECOND);
+    }
+
+    /**
+     * @return the bsub command which submits the job (bsub reads the job
+     * script from standard input)
+     */
+    private String getSubmitCommand(JobSubmission submission,
+            boolean sendEmail, String queueType, ResourceRequest resources) {
         // checks if email notifications should be sent and configures the command
         String emailConfiguration = "";
         if (!sendEmail) {
             emailConfiguration = "LSB_JOB_REPORT_MAIL=N ";
         }
-        // submits the job to LSF
-        Shell shell = new Shell("#!/bin/bash +x\n" + emailConfiguration
-                + "bsub -q " + queueType + " -e \"errorLog\" "
-                + jobFileName + " | tee " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
+        // the job name identifies the build, so that the job can be
+        // killed if the build is gone (see LSFJobReaper)
+        return emailConfiguration + "bsub -q " + queueType
+                + " -e \"errorLog-%J\" -J "
+                + RemoteShell.quote(LSFJobReaper.getJobName(build)) + " "
+                + resources.toBsubOptions() + submission.getOptions();
+    }
 
-        // stores the job id
-        copyFileToMaster.perform(build, launcher, fakeListener);
-        BufferedReader fileReader = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
-        String jobId = fileReader.readLine();
-        jobId = jobId.substring(jobId.indexOf('<', 0)
-                + 1, jobId.indexOf('>', 0));
+    /**
+     * @param submission
+     * @return true if the job is packed with the jobs of other builds
+     */
+    public boolean isPacked(JobSubmission submission) {
+        return submission.isPackable() && cloud != null
+                && cloud.getPackingWindowSeconds() > 0;
+    }
+
+    /**
+     * @return the bsub command which submits a pack of jobs with the same
+     * options as the given job (without the job name and the resources,
+     * which depend on the size of the pack)
+     */
+    private String getPackCommand(JobSubmission submission,
+            boolean sendEmail, String queueType) {
+        String emailConfiguration = "";
+        if (!sendEmail) {
+            emailConfiguration = "LSB_JOB_REPORT_MAIL=N ";
+        }
+        return emailConfiguration + "bsub -q " + queueType
+                + " -o /dev/null -e /dev/null " + submission.getOptions();
+    }
+
+    @Override
+    public String submitAttachedJob(JobSubmission submission,
+            boolean sendEmail, String queueType, ResourceRequest resources,
+            boolean interactive, StreamedJobOutput output)
+            throws InterruptedException, IOException {
+        // bsub -I passes the job's output and bsub -K only waits, both exit
+        // with the exit code of the job
+        submission.setCommand(getSubmitCommand(submission, sendEmail,
+                queueType, resources) + (interactive ? "-I" : "-K"));
+        submission.setOutput(new RemoteOutputStream(output));
+        attachedSubmission = submission;
+        attachedOutput = output;
+        String jobId;
+        try {
+            // the attached submission counts against the rate limit too
+            attachedJob = getDispatcher().submitAttached(
+                    launcher.getChannel(), submission);
+            jobId = output.waitForJobId(attachedJob);
+        } catch (InterruptedException e) {
+            if (attachedJob != null) {
+                attachedJob.cancel(true);
+            }
+            submission.close();
+            throw e;
+        } catch (IOException e) {
+            submission.close();
+            throw e;
+        }
+        if (jobId == null) {
+            submission.close();
+            throw new IOException("LSF rejected the job submission");
+        }
         return jobId;
     }
 
+    @Override
+    public String waitForAttachedJob(String jobId)
+            throws InterruptedException, IOException {
+        String exitCode;
+        try {
+            exitCode = attachedJob.get();
+        } catch (InterruptedException e) {
+            attachedJob.cancel(true);
+            throw e;
+        } catch (ExecutionException e) {
+            throw new IOException("The submit command of job " + jobId
+                    + " failed", e.getCause());
+        } finally {
+            attachedSubmission.close();
+        }
+        // the end of the output may arrive after the submit command
+        attachedOutput.waitForClose(OUTPUT_CLOSE_MILLIS);
+        return "0".equals(exitCode) ? "DONE" : "EXIT";
+    }
+
+    /**
+     * @param output the output of bsub
+     * @return the id of the submitted job or null if the job was rejected
+     */
+    static String parseJobId(String output) {
+        Matcher matcher = JOB_ID.matcher(output);
+        return matcher.find() ? matcher.group(1) : null;
+    }
+
     @Override
     public String getJobStatus(String jobId)
             throws IOException, InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n bjobs " + jobId + " > "
-                + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
-        copyFileToMaster.perform(build, launcher, fakeListener);
-        BufferedReader fileReader = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
-        fileReader.readLine();
-        return fileReader.readLine().trim().split(" ")[2];
+        String status = null;
+        if (breaker.allowRequest()) {
+            RemoteShell.Result result = execute("bjobs " + jobId);
+            status = parseJobStatus(jobId, result.getOutput());
+            if (isJobNotFound(result.getOutput())) {
+                listener.getLogger().println(result.getOutput());
+            }
+            if (status != null) {
+                breaker.recordSuccess();
+            } else {
+                breaker.recordFailure();
+                listener.getLogger().println(result.isTimedOut()
+                        ? "LSF status query timed out."
+                        : result.getOutput());
+            }
+        }
+        if (status != null) {
+            lastStatuses.put(jobId, status);
+            lastStatusTime = System.currentTimeMillis();
+            return status;
+        }
+        // the scheduler is unavailable, the job keeps its last known status
+        int maxOutage = cloud != null ? cloud.getMaxOutageMinutes()
+                : LSFCloud.DEFAULT_MAX_OUTAGE;
+        if (System.currentTimeMillis() - lastStatusTime
+                > maxOutage * 60000L) {
+            throw new IOException("The status of LSF job " + jobId
+                    + " has been unavailable for " + maxOutage + " minutes");
+        }
+        listener.getLogger().println("LSF is unavailable, using the last "
+                + "known job status.");
+        return lastStatuses.containsKey(jobId)
+                ? lastStatuses.get(jobId) : "UNKWN";
+    }
+
+    /**
+     * @param jobId the identifier of the job
+     * @param output the output of bjobs
+     * @return the status of the job in the output (EXIT if LSF no longer
+     * knows the job), null if the output has no line for the job (for
+     * example an error message)
+     */
+    static String parseJobStatus(String jobId, String output) {
+        for (String line : output.split("\n")) {
+            // JOBID USER STAT QUEUE ...
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 3 && fields[0].equals(jobId)) {
+                return fields[2];
+            }
+        }
+        // the job has been cleaned from LSF, its result is unknown
+        return isJobNotFound(output) ? "EXIT" : null;
+    }
+
+    private static boolean isJobNotFound(String output) {
+        return output.contains("is not found");
     }
 
     @Override
-    public void killJob(String jobId) throws InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n bkill " + jobId);
-        shell.perform(build, launcher, listener);
+    public void killJob(String jobId)
+            throws InterruptedException, IOException {
+        listener.getLogger().println(execute("bkill " + jobId).getOutput());
     }
 
     @Override
@@ -122,6 +360,9 @@ public class LSF extends BatchSystem {
             listener.getLogger().println("Suspended by user.");
         } else if (jobStatus.equals("SSUS")) {
             listener.getLogger().println("Suspended by the LSF system.");
+        } else if (jobStatus.equals("UNKWN")) {
+            listener.getLogger().println("Unknown (LSF lost contact with "
+                    + "the execution host or is unavailable).");
         } else if (jobStatus.equals("WAIT")) {
             listener.getLogger().println("Members of a chunk job that "
                     + "are waiting to run.");
@@ -131,21 +372,17 @@ public class LSF extends BatchSystem {
     }
 
     @Override
-    public void printErrorLog() throws InterruptedException {
+    public void printErrorLog(String jobId)
+            throws InterruptedException, IOException {
         listener.getLogger().println("Job exited with following errors:");
-        Shell shell = new Shell("#!/bin/bash +x\n cat errorLog");
-        shell.perform(build, launcher, listener);
+        listener.getLogger().println(
+                execute("cat " + getErrorLogFile(jobId)).getOutput());
     }
 
     @Override
     public void printExitCode(String jobId)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("#!/bin/bash +x\n bjobs -l "
-                + jobId + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
-        copyFileToMaster.perform(build, launcher, fakeListener);
-        String exitCode = FileUtils.readFileToString(
-                new File(masterWorkingDirectory + COMMUNICATION_FILE));
+        String exitCode = execute("bjobs -l " + jobId).getOutput();
         if (exitCode.contains("Exited with exit code ")) {
             listener.getLogger().println();
             exitCode = exitCode.substring(
@@ -157,46 +394,178 @@ public class LSF extends BatchSystem {
     }
 
     @Override
-    public void createJobProgressFile(String jobId, String outputFileName)
+    public String getTerminationReason(String jobId)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("#!/bin/bash +x\n bpeek "
-                + jobId + " > " + outputFileName);
-        shell.perform(build, launcher, listener);
+        // bjobs -l shows the reason as "Completed <exit>; TERM_...: ..."
+        Matcher matcher = TERMINATION_REASON.matcher(
+                execute("bjobs -l " + jobId).getOutput());
+        return matcher.find() ? matcher.group(1) : null;
     }
 
     @Override
-    public void createFormattedRunningJobOutputFile(String outputFileName,
-            int offset, int numberOfLines)
+    public boolean isTransientFailure(String terminationReason) {
+        return TRANSIENT_TERMINATIONS.contains(terminationReason);
+    }
+
+    @Override
+    public String getJobQueue(String jobId)
             throws InterruptedException, IOException {
-        // for clearing the running job output headers
-        if (offset > 2) {
-            offset = offset - 2;
-        } else {
-            offset = offset + 2;
+        return parseJobQueue(jobId, execute("bjobs " + jobId).getOutput());
+    }
+
+    /**
+     * @param jobId the identifier of the job
+     * @param output the output of bjobs
+     * @return the queue of the job in the output or null
+     */
+    static String parseJobQueue(String jobId, String output) {
+        for (String line : output.split("\n")) {
+            // JOBID USER STAT QUEUE ...
+            String[] fields = line.trim().split("\\s+");
+            if (fields.length >= 4 && fields[0].equals(jobId)) {
+                return fields[3];
+            }
         }
-        numberOfLines = numberOfLines - 2;
-        Shell shell = new Shell("#!/bin/bash +x\n tail -n+" + offset + " "
-                + outputFileName + " | head -n " + (numberOfLines - offset)
-                + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, fakeListener);
+        return null;
     }
 
     @Override
-    public void createFinishedJobOutputFile(String jobId, int offset)
-            throws InterruptedException {
-        // because of the running job output headers
-        if (offset >= 3) {
-            offset = offset - 3;
+    public String getDefaultQueue()
+            throws InterruptedException, IOException {
+        if (defaultQueue == null) {
+            Matcher matcher = DEFAULT_QUEUES.matcher(
+                    execute("bparams").getOutput());
+            // the first of several default queues
+            defaultQueue = matcher.find() ? matcher.group(1) : "";
         }
-        Shell shell = new Shell("#!/bin/bash +x\n tail -n+" + offset
-                + " LSFJOB_" + jobId + "/STDOUT" + " > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
+        return defaultQueue.isEmpty() ? null : defaultQueue;
+    }
+
+    @Override
+    public JobUsage getJobUsage(String jobId)
+            throws InterruptedException, IOException {
+        List<String> commands = new ArrayList<String>();
+        commands.add("bjobs -l " + jobId);
+        commands.add("bhist -l " + jobId);
+        List<RemoteShell.Result> results = RemoteShell.execute(launcher,
+                workingDirectory, commands, getCommandTimeout());
+        return parseJobUsage(jobId, results.get(0).getOutput(),
+                results.get(1).getOutput());
+    }
+
+    /**
+     * @param jobId the identifier of the job
+     * @param jobDetails the output of bjobs -l
+     * @param jobHistory the output of bhist -l
+     * @return the resource usage of the job found in the given outputs
+     */
+    static JobUsage parseJobUsage(String jobId, String jobDetails,
+            String jobHistory) {
+        JobUsage usage = new JobUsage(jobId);
+        String details = unwrap(jobDetails);
+        String history = unwrap(jobHistory);
+        String all = details + "\n" + history;
+        Matcher matcher = QUEUE.matcher(all);
+        if (matcher.find()) {
+            usage.setQueue(matcher.group(1));
+        }
+        matcher = CPU_TIME.matcher(all);
+        if (matcher.find()) {
+            usage.setCpuTime(Double.parseDouble(matcher.group(1)));
+        }
+        matcher = MAX_MEMORY.matcher(all);
+        while (matcher.find()) {
+            usage.setMaxMemory(Math.max(usage.getMaxMemory(),
+                    toMegabytes(matcher.group(1), matcher.group(2))));
+        }
+        // older LSF versions only report the swap of the running job
+        matcher = MAX_SWAP.matcher(all);
+        while (matcher.find()) {
+            usage.setMaxSwap(Math.max(usage.getMaxSwap(),
+                    toMegabytes(matcher.group(1), matcher.group(2))));
+        }
+        matcher = STARTED.matcher(all);
+        while (matcher.find()) {
+            Matcher host = ANGLE_BRACKETS.matcher(matcher.group(1));
+            while (host.find()) {
+                // multiple slots on a host are shown as <slots*host>
+                String name = host.group(1);
+                usage.addExecutionHost(
+                        name.substring(name.indexOf('*') + 1));
+            }
+        }
+        matcher = TIME_SUMMARY.matcher(history);
+        if (matcher.find()) {
+            usage.setPendingTime(Long.parseLong(matcher.group(1)));
+            usage.setRunTime(Long.parseLong(matcher.group(3)));
+        }
+        matcher = PENDING_REASON.matcher(history);
+        while (matcher.find()) {
+            usage.addPendingReason(matcher.group(1).trim());
+        }
+        matcher = PENDING_REASONS.matcher(all);
+        while (matcher.find()) {
+            for (String reason : matcher.group(1).split("\n")) {
+                if (!reason.trim().isEmpty()) {
+                    usage.addPendingReason(reason.trim());
+                }
+            }
+        }
+        return usage;
+    }
+
+    /**
+     * joins the lines which LSF has wrapped (continuation lines are indented
+     * by 21 spaces)
+     */
+    private static String unwrap(String output) {
+        return output.replaceAll("\n {21}", "");
+    }
+
+    private static double toMegabytes(String value, String unit) {
+        double megabytes = Double.parseDouble(value);
+        if (unit.startsWith("K")) {
+            megabytes = megabytes / 1024;
+        } else if (unit.startsWith("G")) {
+            megabytes = megabytes * 1024;
+        } else if (unit.startsWith("T")) {
+            megabytes = megabytes * 1024 * 1024;
+        }
+        return megabytes;
+    }
+
+    @Override
+    public void createJobProgressFile(String jobId, String outputFileName)
+            throws InterruptedException, IOException {
+        if (breaker.isOpen()) {
+            // the progress is fetched again when LSF is available
+            return;
+        }
+        // removes the header printed by bpeek before the output
+        execute("bpeek " + jobId
+                + " | sed '1,/^<< output from stdout >>$/d' > "
+                + outputFileName);
+    }
+
+    @Override
+    public String getFinishedJobOutputFile(String jobId) {
+        return "LSFJOB_" + jobId + "/STDOUT";
     }
     
     @Override
-    public void cleanUpFiles(String jobId) throws InterruptedException {
-        Shell shell = new Shell("rm -rf LSFJOB_" + jobId + " errorLog");
-        shell.perform(build, launcher, fakeListener);
+    public List<String> getTemporaryFiles(String jobId) {
+        List<String> files = new ArrayList<String>();
+        files.add("LSFJOB_" + jobId);
+        files.add(getErrorLogFile(jobId));
+        return files;
+    }
+
+    /**
+     * @param jobId
+     * @return the file where LSF writes the error output of the job
+     */
+    private static String getErrorLogFile(String jobId) {
+        return "errorLog-" + jobId;
     }
 
     @Override
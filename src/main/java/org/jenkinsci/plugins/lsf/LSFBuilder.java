@@ -24,39 +24,46 @@
 package org.jenkinsci.plugins.lsf;
 
 import com.michelin.cio.hudson.plugins.copytoslave.CopyToMasterNotifier;
-import com.michelin.cio.hudson.plugins.copytoslave.CopyToSlaveBuildWrapper;
 import hudson.Extension;
+import hudson.FilePath;
 import hudson.Launcher;
 import hudson.Util;
+import hudson.console.HyperlinkNote;
 import hudson.model.AbstractBuild;
 import hudson.model.AbstractProject;
+import hudson.model.Action;
 import hudson.model.BuildListener;
-import hudson.model.TaskListener;
-import hudson.slaves.Cloud;
 import hudson.tasks.BuildStepDescriptor;
 import hudson.tasks.Builder;
-import hudson.tasks.Shell;
-import java.io.BufferedReader;
+import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileReader;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Set;
-import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.zip.GZIPInputStream;
 import javax.servlet.ServletException;
 import jenkins.model.Jenkins;
-import jenkins.util.BuildListenerAdapter;
+import net.sf.json.JSONObject;
 import org.apache.commons.fileupload.FileItem;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import org.apache.commons.fileupload.servlet.ServletFileUpload;
-import org.apache.commons.io.FileUtils;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 import org.kohsuke.stapler.QueryParameter;
 import org.kohsuke.stapler.StaplerRequest;
 import org.kohsuke.stapler.StaplerResponse;
@@ -81,12 +88,73 @@ public class LSFBuilder extends Builder {
     private String uploadedFiles = getUploadedFiles();
     // configuration for checking if email should be sent
     private boolean sendEmail = false;
-    // file name for the communication between master and slave
-    private static final String COMMUNICATION_FILE = "output";
+    // how many first and last lines of the job output are printed to the
+    // console (the full output is stored in the build directory)
+    private Integer consoleHeadLines;
+    private Integer consoleTailLines;
+    // the resources requested for the job (zero if not requested)
+    private int processors;
+    private int memoryLimit;
+    private int memoryReservation;
+    private int runLimit;
+    // configuration for deriving the resource requests from the usage
+    // of the last successful builds
+    private boolean autoSizeResources = false;
+    private Integer autoSizeBuilds;
+    private Integer autoSizeHeadroom;
     // name of the file where the running job output is saved
     private static final String PROGRESS_FILE = "jobProgress";
+    // name of the file where the output is saved for the live output page
+    private static final String LIVE_OUTPUT_FILE = "jobLiveOutput";
+    // how many bytes of the job output are transferred at once
+    private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_CONSOLE_LINES = 1000;
+    private static final int DEFAULT_AUTO_SIZE_BUILDS = 10;
+    private static final int DEFAULT_AUTO_SIZE_HEADROOM = 20;
+    // configuration for reusing the results of identical jobs
+    private boolean cacheResults = false;
+    // how many times a job terminated because of the cluster is
+    // resubmitted and the delay before the first resubmission
+    private Integer maxRequeues;
+    private static final int DEFAULT_MAX_REQUEUES = 2;
+    private static final int REQUEUE_BACKOFF_SECONDS = 60;
+    // whether LSF itself reruns the job after a host failure (bsub -r) and
+    // the checkpoint directory of a checkpointable job (bsub -k)
+    private boolean rerunnable = false;
+    private String checkpointDirectory;
+    // whether LSF copies the files to and from the execution host (bsub -f)
+    private boolean nativeFileStaging = false;
+    // whether the job's status is polled or the submit command stays
+    // attached to the job (bsub -I streams the output, bsub -K blocks)
+    private String submissionMode;
+    public static final String SUBMISSION_POLL = "poll";
+    public static final String SUBMISSION_INTERACTIVE = "interactive";
+    public static final String SUBMISSION_BLOCK = "block";
+    // patterns (one per line) of job output lines after which the job is
+    // killed and the build fails or succeeds without waiting for the job
+    private String failurePatterns;
+    private String successPatterns;
+    // the percentile of the project's run times after which a duplicate of
+    // a running job is submitted to other hosts (zero disables hedging) and
+    // how many duplicates the project can run at once
+    private Integer hedgePercentile;
+    private Integer hedgeBudget;
+    private static final int DEFAULT_HEDGE_BUDGET = 1;
+    // whether the job is submitted before its input files are staged (the
+    // job waits for a marker file written after the files)
+    private boolean overlapStaging = false;
+    private static final int STAGING_TIMEOUT_SECONDS = 3600;
+    // whether the files to download are downloaded while the job is running
+    // as soon as they are complete
+    private boolean harvestResults = false;
+    // whether the job can be packed with the short jobs of other builds
+    // into one LSF job (if the cloud packs jobs)
+    private boolean packable = false;
     private String masterWorkingDirectory;
     private String slaveWorkingDirectory;
+    // the directory in the workspace which has the job's result files
+    // (empty for the workspace itself)
+    private String jobDirectoryName;
 
     /**
      * @param job
@@ -133,6 +201,208 @@ public class LSFBuilder extends Builder {
         return sendEmail;
     }
 
+    public int getConsoleHeadLines() {
+        return consoleHeadLines == null
+                ? DEFAULT_CONSOLE_LINES : consoleHeadLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleHeadLines(int consoleHeadLines) {
+        this.consoleHeadLines = consoleHeadLines;
+    }
+
+    public int getConsoleTailLines() {
+        return consoleTailLines == null
+                ? DEFAULT_CONSOLE_LINES : consoleTailLines;
+    }
+
+    @DataBoundSetter
+    public void setConsoleTailLines(int consoleTailLines) {
+        this.consoleTailLines = consoleTailLines;
+    }
+
+    public int getProcessors() {
+        return processors;
+    }
+
+    @DataBoundSetter
+    public void setProcessors(int processors) {
+        this.processors = processors;
+    }
+
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    @DataBoundSetter
+    public void setMemoryLimit(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    public int getMemoryReservation() {
+        return memoryReservation;
+    }
+
+    @DataBoundSetter
+    public void setMemoryReservation(int memoryReservation) {
+        this.memoryReservation = memoryReservation;
+    }
+
+    public int getRunLimit() {
+        return runLimit;
+    }
+
+    @DataBoundSetter
+    public void setRunLimit(int runLimit) {
+        this.runLimit = runLimit;
+    }
+
+    public boolean getAutoSizeResources() {
+        return autoSizeResources;
+    }
+
+    @DataBoundSetter
+    public void setAutoSizeResources(boolean autoSizeResources) {
+        this.autoSizeResources = autoSizeResources;
+    }
+
+    public int getAutoSizeBuilds() {
+        return autoSizeBuilds == null
+                ? DEFAULT_AUTO_SIZE_BUILDS : autoSizeBuilds;
+    }
+
+    @DataBoundSetter
+    public void setAutoSizeBuilds(int autoSizeBuilds) {
+        this.autoSizeBuilds = autoSizeBuilds;
+    }
+
+    public int getAutoSizeHeadroom() {
+        return autoSizeHeadroom == null
+                ? DEFAULT_AUTO_SIZE_HEADROOM : autoSizeHeadroom;
+    }
+
+    @DataBoundSetter
+    public void setAutoSizeHeadroom(int autoSizeHeadroom) {
+        this.autoSizeHeadroom = autoSizeHeadroom;
+    }
+
+    public boolean getCacheResults() {
+        return cacheResults;
+    }
+
+    @DataBoundSetter
+    public void setCacheResults(boolean cacheResults) {
+        this.cacheResults = cacheResults;
+    }
+
+    public int getMaxRequeues() {
+        return maxRequeues == null ? DEFAULT_MAX_REQUEUES : maxRequeues;
+    }
+
+    @DataBoundSetter
+    public void setMaxRequeues(int maxRequeues) {
+        this.maxRequeues = maxRequeues;
+    }
+
+    public boolean getRerunnable() {
+        return rerunnable;
+    }
+
+    @DataBoundSetter
+    public void setRerunnable(boolean rerunnable) {
+        this.rerunnable = rerunnable;
+    }
+
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    @DataBoundSetter
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    public boolean getNativeFileStaging() {
+        return nativeFileStaging;
+    }
+
+    @DataBoundSetter
+    public void setNativeFileStaging(boolean nativeFileStaging) {
+        this.nativeFileStaging = nativeFileStaging;
+    }
+
+    public String getSubmissionMode() {
+        return submissionMode == null ? SUBMISSION_POLL : submissionMode;
+    }
+
+    @DataBoundSetter
+    public void setSubmissionMode(String submissionMode) {
+        this.submissionMode = submissionMode;
+    }
+
+    public String getFailurePatterns() {
+        return failurePatterns;
+    }
+
+    @DataBoundSetter
+    public void setFailurePatterns(String failurePatterns) {
+        this.failurePatterns = failurePatterns;
+    }
+
+    public String getSuccessPatterns() {
+        return successPatterns;
+    }
+
+    @DataBoundSetter
+    public void setSuccessPatterns(String successPatterns) {
+        this.successPatterns = successPatterns;
+    }
+
+    public int getHedgePercentile() {
+        return hedgePercentile == null ? 0 : hedgePercentile;
+    }
+
+    @DataBoundSetter
+    public void setHedgePercentile(int hedgePercentile) {
+        this.hedgePercentile = Math.max(0, Math.min(100, hedgePercentile));
+    }
+
+    public int getHedgeBudget() {
+        return hedgeBudget == null ? DEFAULT_HEDGE_BUDGET : hedgeBudget;
+    }
+
+    @DataBoundSetter
+    public void setHedgeBudget(int hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    public boolean getOverlapStaging() {
+        return overlapStaging;
+    }
+
+    @DataBoundSetter
+    public void setOverlapStaging(boolean overlapStaging) {
+        this.overlapStaging = overlapStaging;
+    }
+
+    public boolean getHarvestResults() {
+        return harvestResults;
+    }
+
+    @DataBoundSetter
+    public void setHarvestResults(boolean harvestResults) {
+        this.harvestResults = harvestResults;
+    }
+
+    public boolean getPackable() {
+        return packable;
+    }
+
+    @DataBoundSetter
+    public void setPackable(boolean packable) {
+        this.packable = packable;
+    }
+
     /**
      * This is where the interaction between Jenkins and LSF happens.
      *
@@ -149,97 +419,633 @@ public class LSFBuilder extends Builder {
             throws InterruptedException, IOException {
         masterWorkingDirectory = build.getProject().getRootDir()
                 .getAbsolutePath() + "/workspace/";
-        BatchSystem batchSystem = new LSF(build, launcher,
-                listener, COMMUNICATION_FILE, masterWorkingDirectory);
-        CopyToMasterNotifier copyFileToMaster
-                = new CopyToMasterNotifier(COMMUNICATION_FILE, "",
-                        true, masterWorkingDirectory, true);
-        String jobStatus = "";
-        // randomly generated job script name
-        String jobFileName = "JOB-" + UUID.randomUUID().toString();
-        // a fake listener for hiding output of some 
-        // commands to make the console easier to read
-        BuildListenerAdapter fakeListener
-                = new BuildListenerAdapter(TaskListener.NULL);
+        JobRun run = new JobRun(new LSF(build, launcher, listener));
         // gets the queue type from the cloud
-        String queueType = getQueueType(build);
-        // stores the current working directory of the slave
-        slaveWorkingDirectory
-                = getSlaveWorkingDirectory(build, launcher, fakeListener);
-        // sends the selected files to the slave 
-        // and prepares the commands to send files to LSF
-        String sendFilesShellCommands = sendFiles(build, launcher, listener);
-        sendJobToSlave(build, launcher, fakeListener, sendFilesShellCommands,
-                jobFileName);
-        // sets the correct permission of the file for execution
-        setPermissionOnJobFile(build, launcher, listener, jobFileName);
-        String jobId = batchSystem.submitJob(jobFileName, sendEmail, queueType);
+        run.queueType = getQueueType(build);
+        // the job is submitted from the workspace of the slave
+        slaveWorkingDirectory = build.getWorkspace().getRemote();
+        // the files of an earlier build in the workspace are deleted before
+        // the new files are sent
+        CleanupService.flush(build.getBuiltOnStr(), slaveWorkingDirectory);
+        prepareJobScript(build, run);
+        run.resources = getResourceRequest(build, listener);
+        // the result of an identical job can be restored from the cache
+        if (cacheResults && run.sharedFilesystem) {
+            // the job reads the workspace, which isn't part of the key
+            listener.getLogger().println("The result is not cached, the job "
+                    + "runs on a shared filesystem");
+        } else if (cacheResults) {
+            // the submit options decide what the job reruns, checkpoints
+            // and stages
+            run.cacheKey = ResultCache.computeKey(run.script,
+                    getInputFiles(), run.queueType + " "
+                    + run.resources.toBsubOptions() + " "
+                    + run.submitOptions);
+            if (restoreCachedResult(build, listener, run.cacheKey)) {
+                return true;
+            }
+        }
+        submitJob(build, launcher, listener, run);
+        startTracking(build, listener, run);
+        try {
+            if (run.attached) {
+                run.status = run.batchSystem.waitForAttachedJob(run.jobId);
+                listener.getLogger().println("JOB STATUS: " + run.status);
+            }
+            // checks the job's status and progress until it reaches an
+            // ending state
+            while (!run.batchSystem.isEndStatus(run.status)) {
+                Thread.sleep(checkFrequencyMinutes * 60000);
+                if (!checkJob(build, listener, run)) {
+                    break;
+                }
+            }
+            finishJob(build, launcher, listener, run);
+        } catch (InterruptedException e) {
+            if (!run.packed) {
+                run.batchSystem.killJob(run.jobId);
+            }
+            run.status = "ABORTED";
+        } finally {
+            endJob(build, listener, run);
+        }
+        if (run.watchedResult != null) {
+            return run.watchedResult;
+        }
+        return run.batchSystem.jobCompletedSuccessfully(run.status);
+    }
+
+    /**
+     * chooses the job's directory, the job script and the submit options
+     *
+     * @param build
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void prepareJobScript(AbstractBuild<?, ?> build, JobRun run)
+            throws IOException, InterruptedException {
+        run.sharedFilesystem = isSharedFilesystem(build);
+        jobDirectoryName = run.sharedFilesystem ? getJobDirectoryName(build)
+                : "";
+        if (run.sharedFilesystem) {
+            // on a shared filesystem the job runs in its own directory in
+            // the workspace instead of copying the files around
+            slaveWorkingDirectory = build.getWorkspace()
+                    .child(getJobDirectoryName(build)).getRemote();
+            run.batchSystem.setWorkingDirectory(
+                    build.getWorkspace().child(getJobDirectoryName(build)));
+        }
+        // the directory of the job script, a requeued job runs there again
+        // even after a duplicate replaced the job
+        run.submitDirectory = run.batchSystem.getWorkingDirectory();
+        run.submitDirectoryName = jobDirectoryName;
+        run.directory = run.submitDirectory;
+        run.submitOptions = getSubmitOptions();
+        if (run.sharedFilesystem) {
+            run.script = createSharedJobScript();
+        } else if (nativeFileStaging) {
+            // LSF copies the files to and from the execution host
+            run.script = job + "\n";
+            run.submitOptions = run.submitOptions
+                    + getFileStagingOptions(slaveWorkingDirectory);
+        } else {
+            run.script = createJobScript(getSendFilesShellCommands(),
+                    slaveWorkingDirectory);
+        }
+    }
+
+    /**
+     * sends the selected files to the slave and submits the job in one
+     * remote operation (or stages the files while the job queues)
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void submitJob(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        boolean stagedByLsf = nativeFileStaging && !run.sharedFilesystem;
+        JobSubmission submission;
+        JobSubmission staging = null;
+        if (overlapStaging && !stagedByLsf) {
+            // the job queues while its files are staged, the marker is
+            // written after the files
+            staging = createJobSubmission(build, "");
+            staging.addFile(getStagingMarker(build),
+                    new ByteArrayInputStream(new byte[0]));
+            run.script = createStagingPrologue(build) + run.script;
+            submission = new JobSubmission(slaveWorkingDirectory,
+                    run.script);
+        } else {
+            submission = createJobSubmission(build, run.script);
+        }
+        submission.setOptions(run.submitOptions);
+        // the output is watched for lines which decide the build early
+        run.failureWatch = getWatchPatterns(failurePatterns, listener);
+        run.successWatch = getWatchPatterns(successPatterns, listener);
+        run.interactive = SUBMISSION_INTERACTIVE.equals(getSubmissionMode());
+        run.attached = run.interactive
+                || SUBMISSION_BLOCK.equals(getSubmissionMode());
+        // the packed job only writes the output and the exit code of the
+        // build's job script into the job's directory
+        run.packed = packable && !run.attached && staging == null
+                && !stagedByLsf && isPackingEnabled(build)
+                && isShortJob(build, getHistoryQueue(batchSystem,
+                        run.queueType, null), listener);
+        submission.setPackable(run.packed);
+        if (run.attached) {
+            // the output of an interactive job is stored as it arrives
+            StreamedJobOutput stream = new StreamedJobOutput(build,
+                    listener.getLogger(), getConsoleHeadLines(),
+                    getConsoleTailLines());
+            run.jobId = batchSystem.submitAttachedJob(submission, sendEmail,
+                    run.queueType, run.resources, run.interactive, stream);
+            run.outputAction = stream.getOutputAction();
+            run.outputLog = stream.getOutputLog();
+        } else {
+            run.jobId = batchSystem.submitJob(submission, sendEmail,
+                    run.queueType, run.resources);
+            startOutput(build, run);
+        }
+        if (staging != null) {
+            stageFiles(batchSystem, launcher, listener, staging, run.jobId);
+        }
+    }
+
+    /**
+     * starts harvesting the results, predicts the start and finish of the
+     * job from the finished jobs and links the live output
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void startTracking(AbstractBuild<?, ?> build,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        // the finished result files are downloaded while the job runs
+        if (harvestResults && !filesToDownload.trim().isEmpty()) {
+            run.harvester = new ResultHarvester(run.directory,
+                    filesToDownload, new File(getDownloadDirectory(build)));
+        }
+        // the history is kept under the queue LSF actually used
+        run.historyQueue = getHistoryQueue(run.batchSystem, run.queueType,
+                run.jobId);
+        LSFHistory.Prediction history = getDescriptor().getHistory().predict(
+                run.historyQueue, build.getProject().getFullName());
+        if (history != null) {
+            run.prediction = new LSFPredictionAction(run.jobId,
+                    run.historyQueue, System.currentTimeMillis(), history);
+            build.addAction(run.prediction);
+            listener.getLogger().println(run.prediction.getSummary());
+        }
+        if (!run.interactive && !run.packed) {
+            run.outputAction.setLiveOutput(run.batchSystem,
+                    run.directory.child(LIVE_OUTPUT_FILE));
+            listener.getLogger().println("Live job output: " + HyperlinkNote
+                    .encodeTo("/" + build.getUrl()
+                            + run.outputAction.getUrlName() + "/live",
+                            run.outputAction.getDisplayName()));
+        }
+    }
+
+    /**
+     * checks the status of the job once and reads its new output
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @return false if the outcome of the job is already known from its
+     * output (the job has been killed)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected boolean checkJob(AbstractBuild<?, ?> build,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        run.status = batchSystem.getJobStatus(run.jobId);
+        if (run.packed) {
+            run.status = getPackedJobStatus(build, batchSystem, run.directory,
+                    run.status);
+        }
+        listener.getLogger().println("JOB STATUS: " + run.status);
+        batchSystem.processStatus(run.status);
+        if (run.hedgeJobId != null) {
+            checkDuplicateJob(build, listener, run);
+        }
+        if (requeueJob(build, listener, run)) {
+            return true;
+        }
+        if (!batchSystem.isRunningStatus(run.status)) {
+            return true;
+        }
+        if (run.prediction != null && !run.prediction.isStarted()) {
+            run.prediction.setStarted(System.currentTimeMillis());
+            listener.getLogger().println(run.prediction.getSummary());
+        }
+        if (run.runStart == 0) {
+            run.runStart = System.currentTimeMillis();
+        }
+        String project = build.getProject().getFullName();
+        if (!run.hedged && !run.packed
+                && isStraggling(run.historyQueue, project, run.runStart)
+                && HedgingBudget.acquire(project, getHedgeBudget())) {
+            run.hedged = true;
+            run.hedgeJobId = submitDuplicateJob(build, batchSystem,
+                    listener, run.jobId, getSubmitOptions(), run.queueType,
+                    run.resources);
+            if (run.hedgeJobId == null) {
+                HedgingBudget.release(project);
+            }
+        }
+        if (run.packed) {
+            run.offset = transferJobOutput(run.directory.child(
+                    JobPacker.getOutputFile(build.getExternalizableId())),
+                    run.offset, run.outputLog);
+        } else {
+            batchSystem.createJobProgressFile(run.jobId, PROGRESS_FILE);
+            run.offset = transferJobOutput(run.directory.child(
+                    PROGRESS_FILE), run.offset, run.outputLog);
+        }
+        String output = run.outputLog.takeConsoleText();
+        if (!output.isEmpty()) {
+            printJobOutput(listener, output);
+        }
+        if (run.harvester != null) {
+            run.harvester.harvest(listener);
+        }
+        if (run.outputLog.getMatchedLine() != null) {
+            // the outcome of the job is already known
+            run.watchedResult = run.outputLog.isSuccessMatched();
+            listener.getLogger().println("The job output matched a "
+                    + (run.watchedResult ? "success" : "failure")
+                    + " pattern: " + run.outputLog.getMatchedLine());
+            // a packed job also runs the jobs of other builds
+            if (!run.packed) {
+                batchSystem.killJob(run.jobId);
+            }
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * drops the duplicate of the job if it failed, or continues with the
+     * duplicate if it finished first or the job failed
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void checkDuplicateJob(AbstractBuild<?, ?> build,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        String project = build.getProject().getFullName();
+        String hedgeStatus = batchSystem.getJobStatus(run.hedgeJobId);
+        if (!hedgeStatus.equals(run.lastHedgeStatus)) {
+            listener.getLogger().println("DUPLICATE JOB STATUS: "
+                    + hedgeStatus);
+            run.lastHedgeStatus = hedgeStatus;
+        }
+        if (batchSystem.jobExitedWithErrors(hedgeStatus)) {
+            listener.getLogger().println("Duplicate job " + run.hedgeJobId
+                    + " failed");
+            // the duplicate's files are all in its directory
+            CleanupService.schedule(build.getBuiltOnStr(),
+                    build.getWorkspace().getRemote(),
+                    Arrays.asList(getDuplicateDirectoryName(build)), true);
+            run.hedgeJobId = null;
+            HedgingBudget.release(project);
+        } else if (!batchSystem.jobCompletedSuccessfully(run.status)
+                && (batchSystem.jobCompletedSuccessfully(hedgeStatus)
+                || batchSystem.jobExitedWithErrors(run.status))) {
+            // the duplicate finished first or outlives the failed job, the
+            // build shows only the duplicate's output
+            listener.getLogger().println("Continuing with duplicate job "
+                    + run.hedgeJobId + " instead of job " + run.jobId);
+            if (!batchSystem.isEndStatus(run.status)) {
+                batchSystem.killJob(run.jobId);
+            }
+            CleanupService.schedule(build.getBuiltOnStr(),
+                    slaveWorkingDirectory,
+                    batchSystem.getTemporaryFiles(run.jobId), true);
+            String duplicateDirectoryName = getDuplicateDirectoryName(build);
+            replaceJob(build, run, run.hedgeJobId,
+                    build.getWorkspace().child(duplicateDirectoryName),
+                    duplicateDirectoryName);
+            run.hedgeJobId = null;
+            HedgingBudget.release(project);
+            run.status = hedgeStatus;
+        }
+    }
+
+    /**
+     * resubmits the job if LSF terminated it for a transient reason
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @return true if the job was resubmitted
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected boolean requeueJob(AbstractBuild<?, ?> build,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        // an attached job's output has been streamed by its submit command,
+        // which a resubmitted job wouldn't have
+        String reason = batchSystem.jobExitedWithErrors(run.status)
+                && !run.packed && !run.attached
+                && run.requeues < getMaxRequeues()
+                ? batchSystem.getTerminationReason(run.jobId) : null;
+        if (reason == null || !batchSystem.isTransientFailure(reason)) {
+            return false;
+        }
+        // the rest of the terminated job's output goes to the console
+        run.outputAction.clearLiveOutput();
+        transferJobOutput(run.directory.child(
+                batchSystem.getFinishedJobOutputFile(run.jobId)),
+                run.offset, run.outputLog);
+        printJobOutput(listener, run.outputLog.close());
+        run.requeues++;
+        long backoff = (long) REQUEUE_BACKOFF_SECONDS << (run.requeues - 1);
+        listener.getLogger().println("Job " + run.jobId
+                + " was terminated by LSF (" + reason
+                + "), resubmitting in " + backoff + " seconds ("
+                + run.requeues + "/" + getMaxRequeues() + ")");
+        Thread.sleep(backoff * 1000);
+        CleanupService.schedule(build.getBuiltOnStr(),
+                run.directory.getRemote(),
+                batchSystem.getTemporaryFiles(run.jobId), true);
+        // the input files are already in the workspace
+        JobSubmission submission = new JobSubmission(slaveWorkingDirectory,
+                run.script);
+        submission.setOptions(run.submitOptions);
+        String jobId = batchSystem.submitJob(submission, sendEmail,
+                run.queueType, run.resources);
+        // the job script runs in its own directory again (not in the
+        // directory of a duplicate which replaced it)
+        replaceJob(build, run, jobId, run.submitDirectory,
+                run.submitDirectoryName);
+        run.runStart = 0;
+        run.status = "";
+        return true;
+    }
+
+    /**
+     * continues with another job in place of the current one, the output
+     * action of the current job is replaced
+     *
+     * @param build
+     * @param run
+     * @param jobId the job which replaces the current one
+     * @param directory the directory of the job
+     * @param directoryName the directory of the job relative to the
+     * workspace (empty for the workspace)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void replaceJob(AbstractBuild<?, ?> build, JobRun run,
+            String jobId, FilePath directory, String directoryName)
+            throws IOException, InterruptedException {
+        run.outputAction.clearLiveOutput();
+        run.outputLog.close();
+        build.getActions().remove(run.outputAction);
+        run.outputAction.getLogFile().delete();
+        run.outputAction.getIndexFile().delete();
+        run.jobId = jobId;
+        // the results come from the job's directory
+        jobDirectoryName = directoryName;
+        run.directory = directory;
+        run.batchSystem.setWorkingDirectory(directory);
+        if (run.harvester != null) {
+            run.harvester = new ResultHarvester(directory, filesToDownload,
+                    new File(getDownloadDirectory(build)));
+        }
+        startOutput(build, run);
+        run.outputAction.setLiveOutput(run.batchSystem,
+                directory.child(LIVE_OUTPUT_FILE));
+        run.offset = 0;
+    }
+
+    /**
+     * stores the full output of the submitted job in the build directory
+     *
+     * @param build
+     * @param run
+     * @throws IOException
+     */
+    protected void startOutput(AbstractBuild<?, ?> build, JobRun run)
+            throws IOException {
+        run.outputAction = new LSFJobOutputAction(build, run.jobId);
+        build.addAction(run.outputAction);
+        run.outputLog = new JobOutputLog(run.outputAction,
+                getConsoleHeadLines(), getConsoleTailLines());
+        run.outputLog.watch(run.failureWatch, run.successWatch);
+    }
+
+    /**
+     * reads the rest of the output of the ended job, downloads its result
+     * files and caches its result
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void finishJob(AbstractBuild<?, ?> build, Launcher launcher,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        run.outputAction.clearLiveOutput();
+        // the output of an attached job has already been written to the log
+        // by its submit command
+        if (!run.attached) {
+            transferJobOutput(run.directory.child(run.packed
+                    ? JobPacker.getOutputFile(build.getExternalizableId())
+                    : batchSystem.getFinishedJobOutputFile(run.jobId)),
+                    run.offset, run.outputLog);
+        }
+        printJobOutput(listener, run.outputLog.close());
+        listener.getLogger().println("Full job output ("
+                + run.outputLog.getSize() + " bytes): " + HyperlinkNote
+                .encodeTo("/" + build.getUrl()
+                        + run.outputAction.getUrlName(),
+                        run.outputAction.getDisplayName()));
+        List<String> harvested = run.harvester != null
+                ? run.harvester.getUnchangedFiles() : new ArrayList<String>();
+        List<String> downloaded = downloadFiles(build, launcher, listener,
+                harvested);
+        for (String file : harvested) {
+            downloaded.add(new File(file).getName());
+        }
+        if (run.cacheKey != null
+                && batchSystem.jobCompletedSuccessfully(run.status)) {
+            getDescriptor().getResultCache().store(run.cacheKey, run.jobId,
+                    run.outputAction.getLogFile(),
+                    getDownloadedFiles(build, downloaded),
+                    getDescriptor().getCacheSizeMegabytes() * 1024L * 1024L);
+        }
+    }
+
+    /**
+     * kills the remaining duplicate, prints why the job failed, records its
+     * resource usage and cleans up its files (also when the build is
+     * aborted)
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void endJob(AbstractBuild<?, ?> build, BuildListener listener,
+            JobRun run) throws IOException, InterruptedException {
+        BatchSystem batchSystem = run.batchSystem;
+        if (run.hedgeJobId != null) {
+            // the job finished before its duplicate
+            batchSystem.killJob(run.hedgeJobId);
+            HedgingBudget.release(build.getProject().getFullName());
+        }
+        if (run.hedged) {
+            CleanupService.schedule(build.getBuiltOnStr(),
+                    build.getWorkspace().getRemote(),
+                    Arrays.asList(getDuplicateDirectoryName(build)), true);
+        }
+        if (batchSystem.jobExitedWithErrors(run.status) && run.packed) {
+            listener.getLogger().println();
+            String exitCode = getPackedExitCode(build, run.directory);
+            listener.getLogger().println(exitCode != null
+                    ? "Exit code: " + exitCode
+                    : "The packed job ended before running the script");
+        } else if (batchSystem.jobExitedWithErrors(run.status)) {
+            listener.getLogger().println();
+            batchSystem.printErrorLog(run.jobId);
+            batchSystem.printExitCode(run.jobId);
+        }
+        // the usage of a packed job is shared by several builds
+        if (batchSystem.isEndStatus(run.status) && !run.packed) {
+            recordUsage(build, listener, run);
+        }
+        if (run.prediction != null) {
+            run.prediction.setFinished();
+        }
+        // closing again is harmless if the output was fully read
+        run.outputAction.clearLiveOutput();
+        run.outputLog.close();
+        cleanUpFiles(build, batchSystem, run.jobId, run.packed);
+    }
+
+    /**
+     * stores the resource usage of the ended job with the build and its
+     * times in the history
+     *
+     * @param build
+     * @param listener
+     * @param run
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void recordUsage(AbstractBuild<?, ?> build,
+            BuildListener listener, JobRun run)
+            throws IOException, InterruptedException {
+        JobUsage usage = run.batchSystem.getJobUsage(run.jobId);
+        build.addAction(new LSFJobUsageAction(usage));
+        listener.getLogger().println("Job resource usage: "
+                + usage.getSummary());
+        if (usage.getQueue() != null && usage.getPendingTime() >= 0
+                && usage.getRunTime() >= 0) {
+            getDescriptor().getHistory().record(usage.getQueue(),
+                    build.getProject().getFullName(),
+                    usage.getPendingTime(), usage.getRunTime());
+        }
+    }
+
+    /**
+     * restores the cached result of an identical job (the output and the
+     * downloaded files)
+     *
+     * @param build
+     * @param listener
+     * @param cacheKey
+     * @return true if there was a cached result
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected boolean restoreCachedResult(AbstractBuild<?, ?> build,
+            BuildListener listener, String cacheKey)
+            throws IOException, InterruptedException {
+        ResultCache.Entry entry
+                = getDescriptor().getResultCache().lookup(cacheKey);
+        if (entry == null) {
+            return false;
+        }
+        try {
+            restoreEntry(build, listener, entry);
+        } finally {
+            entry.release();
+        }
+        return true;
+    }
+
+    /**
+     * copies the output and the files of a cached result into the build
+     *
+     * @param build
+     * @param listener
+     * @param entry
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected void restoreEntry(AbstractBuild<?, ?> build,
+            BuildListener listener, ResultCache.Entry entry)
+            throws IOException, InterruptedException {
+        String jobId = entry.getJobId();
+        listener.getLogger().println("The job script and the files are "
+                + "identical to LSF job " + jobId + ", restoring its result "
+                + "instead of submitting the job.");
+        LSFJobOutputAction outputAction = new LSFJobOutputAction(build, jobId);
+        build.addAction(outputAction);
+        JobOutputLog outputLog = new JobOutputLog(outputAction,
+                getConsoleHeadLines(), getConsoleTailLines());
+        InputStream in = new GZIPInputStream(
+                new FileInputStream(entry.getOutputLog()));
         try {
-            // command for counting lines in the result file 
-            //(for tracking of job progress)
-            Shell countNumberOfLines
-                    = new Shell("#!/bin/bash +x\n wc -l "
-                            + PROGRESS_FILE + " > " + COMMUNICATION_FILE);
-            // used for output progress tracking 
-            // (specifies how many lines to skip when printing job output file)
-            int offset = 0;
-            // loops for checking the job's status and progress until 
-            // it reaches an ending state
-            while (!batchSystem.isEndStatus(jobStatus)) {
-                Thread.sleep(checkFrequencyMinutes * 60000);
-                jobStatus = batchSystem.getJobStatus(jobId);
-                listener.getLogger().println("JOB STATUS: " + jobStatus);
-                batchSystem.processStatus(jobStatus);
-                if (!batchSystem.isRunningStatus(jobStatus)) {
-                    continue;
-                }
-                batchSystem.createJobProgressFile(jobId, PROGRESS_FILE);
-                countNumberOfLines.perform(build, launcher, fakeListener);
-                copyFileToMaster.perform(build, launcher, fakeListener);
-                BufferedReader fileReader = new BufferedReader(
-                        new FileReader(masterWorkingDirectory
-                                + COMMUNICATION_FILE));
-                String first_word = fileReader.readLine();
-                // checks if command didn't fail and the result file exists
-                if (first_word == null) {
-                    continue;
-                }
-                first_word = first_word.split(" ")[0];
-                if (first_word.equals("wc:")) {
-                    continue;
-                }
-                int numberOfLines = Integer.parseInt(first_word);
-                batchSystem.createFormattedRunningJobOutputFile(
-                        PROGRESS_FILE, offset, numberOfLines);
-                copyFileToMaster.perform(build, launcher, fakeListener);
-                String output = FileUtils.readFileToString(
-                        new File(masterWorkingDirectory + COMMUNICATION_FILE));
-                if (!output.isEmpty()) {
-                    printJobOutput(listener, output);
-                }
-                if (offset < numberOfLines) {
-                    offset = numberOfLines;
-                }
+            byte[] buffer = new byte[OUTPUT_BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buffer)) >= 0) {
+                outputLog.write(Arrays.copyOf(buffer, n));
             }
-            batchSystem.createFinishedJobOutputFile(jobId, offset);
-            copyFileToMaster.perform(build, launcher, fakeListener);
-            String output = FileUtils.readFileToString(
-                    new File(masterWorkingDirectory + COMMUNICATION_FILE));
-            printJobOutput(listener, output);
-            downloadFiles(build, launcher, listener);
-        } catch (InterruptedException e) {
-            batchSystem.killJob(jobId);
-            jobStatus = "ABORTED";
         } finally {
-            if (batchSystem.jobExitedWithErrors(jobStatus)) {
-                listener.getLogger().println();
-                batchSystem.printErrorLog();
-                batchSystem.printExitCode(jobId);
-            }
-            batchSystem.cleanUpFiles(jobId);
-            cleanUpFiles(build, launcher, fakeListener, jobFileName, jobId);
+            in.close();
+            printJobOutput(listener, outputLog.close());
+        }
+        File directory = new File(getDownloadDirectory(build));
+        for (File file : entry.getFiles()) {
+            listener.getLogger().println("Restoring " + file.getName());
+            Files.copy(file.toPath(), new File(directory, file.getName())
+                    .toPath(), StandardCopyOption.REPLACE_EXISTING);
         }
-        return batchSystem.jobCompletedSuccessfully(jobStatus);
+    }
+
+    @Override
+    public Action getProjectAction(AbstractProject<?, ?> project) {
+        return new LSFUsageProjectAction(project);
     }
 
     /**
@@ -260,79 +1066,429 @@ public class LSFBuilder extends Builder {
     }
 
     /**
-     * @param build
-     * @return queue type from the cloud
+     * appends the new part of the job output file in the slave to the job
+     * output log (a buffer at a time)
+     *
+     * @param file the job output file in the slave
+     * @param offset how many bytes of the file were already transferred
+     * @param outputLog
+     * @return the new offset
+     * @throws IOException
+     * @throws InterruptedException
      */
-    protected String getQueueType(AbstractBuild<?, ?> build) {
-        // finds the queue type by searching through the clouds 
-        // with the associated label
-        for (Cloud cloud : Jenkins.getInstance().clouds) {
-            if (cloud instanceof LSFCloud && cloud.canProvision(
-                    build.getProject().getAssignedLabel())) {
-                return ((LSFCloud) cloud).getQueueType();
-            }
+    protected long transferJobOutput(FilePath file, long offset,
+            JobOutputLog outputLog) throws IOException, InterruptedException {
+        byte[] data;
+        do {
+            data = file.act(new RemoteFileRange(offset, OUTPUT_BUFFER_SIZE));
+            outputLog.write(data);
+            offset += data.length;
+        } while (data.length == OUTPUT_BUFFER_SIZE);
+        return offset;
+    }
+
+    /**
+     * @return the bsub options for rerunnable and checkpointable jobs
+     */
+    protected String getSubmitOptions() {
+        String options = "";
+        if (rerunnable) {
+            options = options + "-r ";
         }
-        return null;
+        if (Util.fixEmptyAndTrim(checkpointDirectory) != null) {
+            options = options + "-k "
+                    + RemoteShell.quote(checkpointDirectory.trim()) + " ";
+        }
+        return options;
     }
 
     /**
      * @param build
-     * @param launcher
-     * @param listener
-     * @return current working directory in the slave machine
+     * @return true if the cloud packs the short jobs of different builds
+     */
+    protected boolean isPackingEnabled(AbstractBuild<?, ?> build) {
+        LSFCloud cloud
+                = LSFCloud.getCloud(build.getProject().getAssignedLabel());
+        return cloud != null && cloud.getPackingWindowSeconds() > 0;
+    }
+
+    /**
+     * @param batchSystem
+     * @param queueType the queue of the cloud (null or empty for the default)
+     * @param jobId the submitted job or null if it isn't submitted yet
+     * @return the queue LSF puts the job in, as recorded in the history
      * @throws InterruptedException
      * @throws IOException
      */
-    protected String getSlaveWorkingDirectory(AbstractBuild<?, ?> build,
-            Launcher launcher, BuildListener listener)
+    protected String getHistoryQueue(BatchSystem batchSystem,
+            String queueType, String jobId)
             throws InterruptedException, IOException {
-        Shell shell = new Shell("pwd > " + COMMUNICATION_FILE);
-        shell.perform(build, launcher, listener);
-        CopyToMasterNotifier copyFileToMaster
-                = new CopyToMasterNotifier(COMMUNICATION_FILE, "", true,
-                        masterWorkingDirectory, true);
-        copyFileToMaster.perform(build, launcher, listener);
-        BufferedReader br = new BufferedReader(
-                new FileReader(masterWorkingDirectory + COMMUNICATION_FILE));
-        return br.readLine();
+        if (queueType != null && !queueType.trim().isEmpty()) {
+            return queueType.trim();
+        }
+        String queue = jobId != null ? batchSystem.getJobQueue(jobId)
+                : batchSystem.getDefaultQueue();
+        return queue != null ? queue : String.valueOf(queueType);
     }
 
     /**
-     * sends the selected files to the slave machine
-     *
      * @param build
-     * @param launcher
+     * @param queue the queue of the job in the history
      * @param listener
-     * @return shell commands for sending files to batch system
+     * @return true if the median run time of the project's earlier jobs in
+     * the queue is within the cloud's limit for packed jobs
+     */
+    protected boolean isShortJob(AbstractBuild<?, ?> build, String queue,
+            BuildListener listener) {
+        LSFCloud cloud
+                = LSFCloud.getCloud(build.getProject().getAssignedLabel());
+        LSFHistory.Prediction history = getDescriptor().getHistory().predict(
+                queue, build.getProject().getFullName());
+        if (cloud == null || history == null || !history.isFromProject()
+                || history.getRunTime() > cloud.getMaxPackedRunSeconds()) {
+            listener.getLogger().println("The job is not packed, the "
+                    + "project's earlier jobs are unknown or ran longer than "
+                    + (cloud != null ? cloud.getMaxPackedRunSeconds()
+                            : JobPacker.DEFAULT_MAX_RUN_TIME) + " seconds");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param build
+     * @param jobDirectory
+     * @return the exit code of the build's job script in a packed job or
+     * null if the script hasn't finished
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String getPackedExitCode(AbstractBuild<?, ?> build,
+            FilePath jobDirectory) throws IOException, InterruptedException {
+        FilePath exitCode = jobDirectory.child(
+                JobPacker.getExitCodeFile(build.getExternalizableId()));
+        return exitCode.exists() ? exitCode.readToString().trim() : null;
+    }
+
+    /**
+     * @param build
+     * @param batchSystem
+     * @param jobDirectory
+     * @param packStatus the status of the packed job
+     * @return the status of the build's job script in the packed job, which
+     * ends when the script's exit code has been written
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    protected String getPackedJobStatus(AbstractBuild<?, ?> build,
+            BatchSystem batchSystem, FilePath jobDirectory, String packStatus)
+            throws IOException, InterruptedException {
+        String exitCode = getPackedExitCode(build, jobDirectory);
+        if (exitCode != null) {
+            return "0".equals(exitCode) ? "DONE" : "EXIT";
+        }
+        // the packed job ended without running the script
+        return batchSystem.isEndStatus(packStatus) ? "EXIT" : packStatus;
+    }
+
+    /**
+     * @param build
+     * @return the name of the file (in the job's working directory in the
+     * slave) which shows that the input files of the job have been staged
+     */
+    protected String getStagingMarker(AbstractBuild<?, ?> build) {
+        return ".lsf-staged-" + build.getNumber();
+    }
+
+    /**
+     * @param build
+     * @return shell commands which make the job wait until its input files
+     * have been staged
+     */
+    protected String createStagingPrologue(AbstractBuild<?, ?> build) {
+        String marker = slaveWorkingDirectory + "/" + getStagingMarker(build);
+        return "waited=0\n"
+                + "while [ ! -f " + RemoteShell.quote(marker) + " ]; do\n"
+                + "    if [ $waited -ge " + STAGING_TIMEOUT_SECONDS
+                + " ]; then\n"
+                + "        echo \"The input files were not staged\" >&2\n"
+                + "        exit 1\n"
+                + "    fi\n"
+                + "    sleep 2\n"
+                + "    waited=$((waited + 2))\n"
+                + "done\n";
+    }
+
+    /**
+     * stages the input files of an already submitted job, the job is
+     * killed if the files can't be staged
+     *
      * @throws IOException
      * @throws InterruptedException
      */
-    protected String sendFiles(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener)
+    protected void stageFiles(BatchSystem batchSystem, Launcher launcher,
+            BuildListener listener, JobSubmission staging, String jobId)
             throws IOException, InterruptedException {
+        listener.getLogger().println("Staging the input files while job "
+                + jobId + " is queued");
+        try {
+            launcher.getChannel().call(staging);
+        } catch (IOException e) {
+            batchSystem.killJob(jobId);
+            throw e;
+        } catch (InterruptedException e) {
+            batchSystem.killJob(jobId);
+            throw e;
+        } finally {
+            staging.close();
+        }
+    }
+
+    /**
+     * @param queue the queue of the job in the history
+     * @param project the full name of the project
+     * @param runStart when the job started running
+     * @return true if the job has run longer than the hedging percentile
+     * of the project's earlier jobs
+     */
+    protected boolean isStraggling(String queue, String project,
+            long runStart) {
+        if (getHedgePercentile() == 0) {
+            return false;
+        }
+        long limit = getDescriptor().getHistory().getRunTimePercentile(
+                queue, project, getHedgePercentile());
+        return limit >= 0
+                && System.currentTimeMillis() - runStart > limit * 1000;
+    }
+
+    /**
+     * submits a duplicate of a straggling job which can't run on the hosts
+     * of the job, the duplicate runs in its own directory in the workspace
+     * (with the input files of the job) so that the two jobs don't write
+     * their results to the same place
+     *
+     * @return the id of the duplicate job or null if it wasn't submitted
+     * @throws InterruptedException
+     */
+    protected String submitDuplicateJob(AbstractBuild<?, ?> build,
+            BatchSystem batchSystem, BuildListener listener, String jobId,
+            String submitOptions, String queueType, ResourceRequest resources)
+            throws InterruptedException {
+        try {
+            String exclusion = "";
+            for (String host
+                    : batchSystem.getJobUsage(jobId).getExecutionHosts()) {
+                // host names are plain words in the selection string
+                if (host.matches("[A-Za-z0-9._-]+")) {
+                    exclusion = exclusion + (exclusion.isEmpty() ? ""
+                            : " && ") + "hname!=" + host;
+                }
+            }
+            String directory = build.getWorkspace()
+                    .child(getDuplicateDirectoryName(build)).getRemote();
+            String script;
+            if (isSharedFilesystem(build)) {
+                script = "cd \"$LS_SUBCWD\" || exit 1\n"
+                        + getSendFilesShellCommands() + job + "\n";
+            } else if (nativeFileStaging) {
+                script = job + "\n";
+                submitOptions = submitOptions
+                        + getFileStagingOptions(directory);
+            } else {
+                script = createJobScript(getSendFilesShellCommands(),
+                        directory);
+            }
+            // the input files are already in the workspace
+            JobSubmission duplicate = new JobSubmission(directory, script);
+            duplicate.setOptions(submitOptions + (exclusion.isEmpty() ? ""
+                    : "-R " + RemoteShell.quote("select[" + exclusion + "]")
+                    + " "));
+            listener.getLogger().println("Job " + jobId + " runs longer "
+                    + "than " + getHedgePercentile() + "% of the project's "
+                    + "jobs, submitting a duplicate to other hosts");
+            return batchSystem.submitJob(duplicate, sendEmail, queueType,
+                    resources);
+        } catch (IOException e) {
+            listener.getLogger().println("Failed to submit a duplicate of "
+                    + "job " + jobId + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param build
+     * @return the name of the directory in the workspace where the duplicate
+     * of a straggling job runs
+     */
+    protected String getDuplicateDirectoryName(AbstractBuild<?, ?> build) {
+        return "lsf-duplicate-" + build.getNumber();
+    }
+
+    /**
+     * @param patterns regular expressions, one per line
+     * @param listener
+     * @return the compiled patterns (invalid ones are skipped)
+     */
+    protected List<Pattern> getWatchPatterns(String patterns,
+            BuildListener listener) {
+        List<Pattern> compiled = new ArrayList<Pattern>();
+        if (patterns == null) {
+            return compiled;
+        }
+        for (String pattern : patterns.split("\n")) {
+            if (pattern.trim().isEmpty()) {
+                continue;
+            }
+            try {
+                compiled.add(Pattern.compile(pattern.trim()));
+            } catch (PatternSyntaxException e) {
+                listener.getLogger().println("Ignoring the invalid output "
+                        + "pattern " + pattern.trim() + ": "
+                        + e.getDescription());
+            }
+        }
+        return compiled;
+    }
+
+    /**
+     * @return the bsub file staging options which copy the files to send
+     * from the slave's workspace to the execution host before the job and
+     * the files to download back after the job
+     */
+    protected String getFileStagingOptions(String resultDirectory) {
+        String options = "";
+        for (File inputFile : getInputFiles()) {
+            options = options + "-f " + RemoteShell.quote(slaveWorkingDirectory
+                    + "/" + inputFile.getName() + " > "
+                    + inputFile.getName()) + " ";
+        }
+        for (String file : filesToDownload.split(",")) {
+            if (!file.trim().isEmpty()) {
+                options = options + "-f " + RemoteShell.quote(
+                        resultDirectory + "/" + file.trim() + " < "
+                        + file.trim()) + " ";
+            }
+        }
+        return options;
+    }
+
+    /**
+     * @param build
+     * @param listener
+     * @return the resources requested for the job (derived from the usage
+     * of the last successful builds if automatic sizing is enabled)
+     */
+    protected ResourceRequest getResourceRequest(AbstractBuild<?, ?> build,
+            BuildListener listener) {
+        ResourceRequest resources = new ResourceRequest(processors,
+                memoryLimit, memoryReservation, runLimit);
+        if (autoSizeResources) {
+            resources = resources.fromHistory(build.getProject(),
+                    getAutoSizeBuilds(), getAutoSizeHeadroom());
+            listener.getLogger().println("Automatically sized resource "
+                    + "requests: " + resources);
+        }
+        return resources;
+    }
+
+    /**
+     * @param build
+     * @return queue type from the cloud
+     */
+    protected String getQueueType(AbstractBuild<?, ?> build) {
+        // finds the queue type by searching through the clouds 
+        // with the associated label
+        LSFCloud cloud
+                = LSFCloud.getCloud(build.getProject().getAssignedLabel());
+        return cloud != null ? cloud.getQueueType() : null;
+    }
+
+    /**
+     * @param build
+     * @return true if the workspace of the slave is on a filesystem shared
+     * with the execution hosts of the cloud
+     */
+    protected boolean isSharedFilesystem(AbstractBuild<?, ?> build) {
+        LSFCloud cloud
+                = LSFCloud.getCloud(build.getProject().getAssignedLabel());
+        return cloud != null && cloud.getSharedFilesystem();
+    }
+
+    /**
+     * @param build
+     * @return the name of the directory in the workspace where the job runs
+     * on a shared filesystem
+     */
+    protected String getJobDirectoryName(AbstractBuild<?, ?> build) {
+        return "lsf-" + build.getNumber();
+    }
+
+    /**
+     * @return shell commands for sending files to batch system
+     */
+    protected String getSendFilesShellCommands() {
         String sendFilesShellCommands = "";
-        String filesWithoutPaths = "";
-        for (String file : filesToSend.split(",")) {
-            File fileToSend = new File(file.trim());
+        for (File fileToSend : getInputFiles()) {
             sendFilesShellCommands = sendFilesShellCommands + "cp \""
                     + slaveWorkingDirectory + "/"
                     + fileToSend.getName() + "\" .\n";
-            Files.copy(fileToSend.toPath(),
-                    new File(masterWorkingDirectory
-                            + fileToSend.getName()).toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
-            filesWithoutPaths = fileToSend.getName() + "," + filesWithoutPaths;
+        }
+        return sendFilesShellCommands;
+    }
+
+    /**
+     * @return the files (in master) sent with the job, both the selected and
+     * the uploaded files
+     */
+    protected List<File> getInputFiles() {
+        List<File> inputFiles = new ArrayList<File>();
+        for (String file : filesToSend.split(",")) {
+            if (!file.trim().isEmpty()) {
+                inputFiles.add(new File(file.trim()));
+            }
         }
         for (String file : uploadedFiles.split(",")) {
-            sendFilesShellCommands = sendFilesShellCommands + "cp \""
-                    + slaveWorkingDirectory + "/" + file + "\" .\n";
+            if (!file.trim().isEmpty()) {
+                inputFiles.add(new File(masterWorkingDirectory + file.trim()));
+            }
         }
-        CopyToSlaveBuildWrapper copyToSlave
-                = new CopyToSlaveBuildWrapper(filesWithoutPaths + uploadedFiles,
-                        "", false, false,
-                        CopyToSlaveBuildWrapper.RELATIVE_TO_WORKSPACE, false);
-        copyToSlave.setUp(build, launcher, listener);
-        return sendFilesShellCommands;
+        return inputFiles;
+    }
+
+    /**
+     * @param build
+     * @param script the job script
+     * @return the submission of the job with the selected files to send
+     * @throws IOException
+     */
+    protected JobSubmission createJobSubmission(AbstractBuild<?, ?> build,
+            String script) throws IOException {
+        JobSubmission submission
+                = new JobSubmission(slaveWorkingDirectory, script);
+        boolean sharedFilesystem = isSharedFilesystem(build);
+        try {
+            for (File inputFile : getInputFiles()) {
+                // a build on master may already have the file in its workspace
+                FilePath target = build.getWorkspace()
+                        .child(slaveWorkingDirectory)
+                        .child(inputFile.getName());
+                if (!target.isRemote() && new File(target.getRemote())
+                        .getCanonicalFile()
+                        .equals(inputFile.getCanonicalFile())) {
+                    continue;
+                }
+                // on a shared filesystem a read-only file is hard-linked if
+                // the slave sees the same file at the same path
+                submission.addFile(inputFile.getName(),
+                        new FileInputStream(inputFile), sharedFilesystem
+                                ? inputFile.getAbsolutePath() : null);
+            }
+        } catch (IOException e) {
+            submission.close();
+            throw e;
+        }
+        return submission;
     }
 
     /**
@@ -346,113 +1502,208 @@ public class LSFBuilder extends Builder {
      */
     protected void downloadFiles(AbstractBuild<?, ?> build, Launcher launcher,
             BuildListener listener) throws InterruptedException, IOException {
+        downloadFiles(build, launcher, listener, new ArrayList<String>());
+    }
+
+    /**
+     * downloads the selected files from slave to master except the files
+     * which were already downloaded while the job was running
+     *
+     * @param build
+     * @param launcher
+     * @param listener
+     * @param downloaded the files already downloaded (relative to the job's
+     * directory)
+     * @return the names of the files downloaded now (without their paths)
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    protected List<String> downloadFiles(AbstractBuild<?, ?> build,
+            Launcher launcher, BuildListener listener,
+            List<String> downloaded)
+            throws InterruptedException, IOException {
+        List<String> names = new ArrayList<String>();
         if (!filesToDownload.isEmpty()) {
             listener.getLogger().println();
             listener.getLogger().println("Downloading the selected files:");
-            boolean is_default = false;
-            // default destination is the build directory
-            if (downloadDestination.isEmpty()) {
-                downloadDestination = build.getRootDir().getAbsolutePath();
-                is_default = true;
+            // the files are downloaded from the job's directory (on a shared
+            // filesystem or when a duplicate job replaced the job)
+            String prefix = jobDirectoryName == null
+                    || jobDirectoryName.isEmpty() ? "" : jobDirectoryName + "/";
+            String includes = "";
+            for (String file : filesToDownload.split(",")) {
+                if (!file.trim().isEmpty()) {
+                    includes = includes + prefix + file.trim() + ",";
+                }
+            }
+            String excludes = "";
+            for (String file : downloaded) {
+                excludes = excludes + prefix + file + ",";
+            }
+            for (FilePath file
+                    : build.getWorkspace().list(includes, excludes)) {
+                names.add(file.getName());
             }
             CopyToMasterNotifier copyFilesToMaster
-                    = new CopyToMasterNotifier(filesToDownload, "",
-                            true, downloadDestination, true);
+                    = new CopyToMasterNotifier(includes, excludes,
+                            true, getDownloadDirectory(build), true);
             copyFilesToMaster.perform(build, launcher, listener);
-            // resets the download destination
-            if (is_default) {
-                downloadDestination = "";
-            }
         }
+        return names;
     }
 
     /**
-     * sends the job script file to slave
-     *
      * @param build
-     * @param launcher
-     * @param listener
-     * @param sendFilesShellCommands
-     * @param jobFileName
-     * @throws IOException
-     * @throws InterruptedException
+     * @return the directory (in master) to which the selected files are
+     * downloaded, the default destination is the build directory
      */
-    protected void sendJobToSlave(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String sendFilesShellCommands,
-            String jobFileName) throws IOException, InterruptedException {
-        // stores the job in a script file
-        PrintWriter writer
-                = new PrintWriter(masterWorkingDirectory
-                        + jobFileName, "UTF-8");
-        writer.print(sendFilesShellCommands + job + "\n");
+    protected String getDownloadDirectory(AbstractBuild<?, ?> build) {
+        if (downloadDestination == null || downloadDestination.isEmpty()) {
+            return build.getRootDir().getAbsolutePath();
+        }
+        return downloadDestination;
+    }
 
-        // inputs the files to download commands to the job
-        if (!filesToDownload.isEmpty()) {
-            for (String file : filesToDownload.split(",")) {
-                writer.print("cp \"" + file.trim() + "\" \""
-                        + slaveWorkingDirectory + "/\" > /dev/null\n");
+    /**
+     * @param build
+     * @param names the names of the files downloaded by the build
+     * @return the files downloaded by the build to master (not the other
+     * files of the download directory, which is the build directory by
+     * default)
+     */
+    protected List<File> getDownloadedFiles(AbstractBuild<?, ?> build,
+            List<String> names) {
+        List<File> files = new ArrayList<File>();
+        File directory = new File(getDownloadDirectory(build));
+        for (String name : new LinkedHashSet<String>(names)) {
+            File file = new File(directory, name);
+            if (file.isFile()) {
+                files.add(file);
             }
         }
-        writer.close();
-        // sends the job file to the slave
-        CopyToSlaveBuildWrapper copyToSlave = new CopyToSlaveBuildWrapper(
-                jobFileName, "", false, false,
-                CopyToSlaveBuildWrapper.RELATIVE_TO_WORKSPACE, false);
-        copyToSlave.setUp(build, launcher, listener);
+        return files;
     }
 
     /**
-     * sets the correct permission on the job file
-     *
-     * @param build
-     * @param launcher
-     * @param listener
-     * @param jobFileName
-     * @throws InterruptedException
+     * @return the job script for a shared filesystem, which runs the job in
+     * the directory it was submitted from without copying any files
      */
-    protected void setPermissionOnJobFile(AbstractBuild<?, ?> build,
-            Launcher launcher, BuildListener listener, String jobFileName)
-            throws InterruptedException {
-        Shell shell = new Shell("#!/bin/bash +x\n chmod 755 "
-                + jobFileName + " > /dev/null");
-        shell.perform(build, launcher, listener);
+    protected String createSharedJobScript() {
+        return "cd \"$LS_SUBCWD\" || exit 1\n" + job + "\n";
+    }
+
+    /**
+     * @param sendFilesShellCommands
+     * @param resultDirectory the directory in the slave to which the files
+     * to download are copied
+     * @return the job script
+     */
+    protected String createJobScript(String sendFilesShellCommands,
+            String resultDirectory) {
+        String script = sendFilesShellCommands + job + "\n";
+        // inputs the files to download commands to the job
+        if (!filesToDownload.isEmpty()) {
+            for (String file : filesToDownload.split(",")) {
+                script = script + "cp \"" + file.trim() + "\" \""
+                        + resultDirectory + "/\" > /dev/null\n";
+            }
+        }
+        return script;
     }
 
     /**
-     * cleans up the temporary files in the master and the slave
+     * schedules the deletion of the temporary files in the slave
      *
      * @param build
-     * @param launcher
-     * @param listener
-     * @param jobFileName
+     * @param batchSystem
      * @param jobId
-     * @throws InterruptedException
+     * @param packed whether the job was packed with the jobs of other builds
      */
-    protected void cleanUpFiles(AbstractBuild<?, ?> build, Launcher launcher,
-            BuildListener listener, String jobFileName, String jobId)
-            throws InterruptedException {
-        String filesToDelete = jobFileName + " " 
-                + PROGRESS_FILE + " " + COMMUNICATION_FILE;
+    protected void cleanUpFiles(AbstractBuild<?, ?> build,
+            BatchSystem batchSystem, String jobId, boolean packed) {
+        if (isSharedFilesystem(build)) {
+            // all the files of the job are in the job's directory
+            CleanupService.schedule(build.getBuiltOnStr(),
+                    build.getWorkspace().getRemote(),
+                    Arrays.asList(getJobDirectoryName(build)), true);
+            return;
+        }
+        List<String> filesToDelete = new ArrayList<String>();
+        if (packed) {
+            // the files of the packed job itself are not in the workspace
+            String runId = build.getExternalizableId();
+            filesToDelete.add(JobPacker.getOutputFile(runId));
+            filesToDelete.add(JobPacker.getExitCodeFile(runId) + "*");
+        } else {
+            // the temporary directory of LSF is deleted with its contents
+            CleanupService.schedule(build.getBuiltOnStr(),
+                    slaveWorkingDirectory,
+                    batchSystem.getTemporaryFiles(jobId), true);
+        }
+        filesToDelete.add(PROGRESS_FILE);
+        filesToDelete.add(LIVE_OUTPUT_FILE);
+        filesToDelete.add(getStagingMarker(build));
         for (String uploadedFile : uploadedFiles.split(",")) {
-            filesToDelete = filesToDelete + " " + uploadedFile.trim();
+            filesToDelete.add(uploadedFile.trim());
         }
         for (String fileToDownload : filesToDownload.split(",")) {
-            filesToDelete = filesToDelete + " " + fileToDownload.trim();
+            filesToDelete.add(fileToDownload.trim());
         }
-        File file = new File(masterWorkingDirectory + jobFileName);
-        file.delete();
         for (String fileToSend : filesToSend.split(",")) {
-            String fileName = new File(fileToSend.trim()).getName();
-            file = new File(masterWorkingDirectory + fileName);
-            file.delete();
-            filesToDelete = filesToDelete + " " + fileName;
+            filesToDelete.add(new File(fileToSend.trim()).getName());
+        }
+        // the files are deleted in the background
+        CleanupService.schedule(build.getBuiltOnStr(), slaveWorkingDirectory,
+                filesToDelete);
+    }
+
+    /**
+     * the state of the LSF job of a build, which changes when the job is
+     * requeued or replaced by its duplicate
+     */
+    protected static class JobRun {
+
+        protected final BatchSystem batchSystem;
+        protected String queueType;
+        protected ResourceRequest resources;
+        protected String script;
+        protected String submitOptions;
+        protected boolean sharedFilesystem;
+        // the directory the job script was submitted from
+        protected FilePath submitDirectory;
+        protected String submitDirectoryName;
+        // the directory of the current job (the duplicate's directory after
+        // the duplicate replaced the job)
+        protected FilePath directory;
+        protected String cacheKey;
+        protected boolean interactive;
+        protected boolean attached;
+        protected boolean packed;
+        protected String jobId;
+        protected String status = "";
+        protected LSFJobOutputAction outputAction;
+        protected JobOutputLog outputLog;
+        // how many bytes of the job output were already read
+        protected long offset;
+        protected List<Pattern> failureWatch;
+        protected List<Pattern> successWatch;
+        // the outcome decided by a watched output line (null if none)
+        protected Boolean watchedResult;
+        protected ResultHarvester harvester;
+        protected String historyQueue;
+        protected LSFPredictionAction prediction;
+        protected int requeues;
+        // when the job (or its duplicate) started running
+        protected long runStart;
+        // whether a duplicate of the job has been submitted
+        protected boolean hedged;
+        // the duplicate of a straggling job (null if there is none)
+        protected String hedgeJobId;
+        protected String lastHedgeStatus;
+
+        protected JobRun(BatchSystem batchSystem) {
+            this.batchSystem = batchSystem;
         }
-        file = new File(masterWorkingDirectory + COMMUNICATION_FILE);
-        file.delete();
-        Shell shell = new Shell("rm -rf LSFJOB_" + jobId);
-        shell.perform(build, launcher, listener);
-        shell = new Shell("rm " + filesToDelete);
-        shell.perform(build, launcher, listener);
     }
 
     @Override
@@ -468,6 +1719,10 @@ public class LSFBuilder extends Builder {
     public static class DescriptorImpl extends BuildStepDescriptor<Builder> {
 
         public Set<File> uploadedFiles = new HashSet<File>();
+        // the size limit of the cache of job results
+        private int cacheSizeMegabytes = 1024;
+        private transient ResultCache resultCache;
+        private transient LSFHistory history;
 
         public Set<File> getUploadedFiles() {
             return uploadedFiles;
@@ -477,6 +1732,67 @@ public class LSFBuilder extends Builder {
             load();
         }
 
+        public int getCacheSizeMegabytes() {
+            return cacheSizeMegabytes;
+        }
+
+        public synchronized ResultCache getResultCache() {
+            if (resultCache == null) {
+                resultCache = new ResultCache(new File(
+                        Jenkins.getInstance().getRootDir(),
+                        "lsf-result-cache"));
+            }
+            return resultCache;
+        }
+
+        public synchronized LSFHistory getHistory() {
+            if (history == null) {
+                history = LSFHistory.load(new File(
+                        Jenkins.getInstance().getRootDir(),
+                        "lsf-history.xml"));
+            }
+            return history;
+        }
+
+        public FormValidation doCheckFailurePatterns(
+                @QueryParameter String value) {
+            return checkPatterns(value);
+        }
+
+        public FormValidation doCheckSuccessPatterns(
+                @QueryParameter String value) {
+            return checkPatterns(value);
+        }
+
+        private FormValidation checkPatterns(String patterns) {
+            for (String pattern : patterns.split("\n")) {
+                try {
+                    Pattern.compile(pattern.trim());
+                } catch (PatternSyntaxException e) {
+                    return FormValidation.error("Invalid pattern "
+                            + pattern.trim() + ": " + e.getDescription());
+                }
+            }
+            return FormValidation.ok();
+        }
+
+        public ListBoxModel doFillSubmissionModeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("Poll the job's status and output", SUBMISSION_POLL);
+            items.add("Stream the output (bsub -I)", SUBMISSION_INTERACTIVE);
+            items.add("Wait for the job to finish (bsub -K)",
+                    SUBMISSION_BLOCK);
+            return items;
+        }
+
+        @Override
+        public boolean configure(StaplerRequest req, JSONObject json)
+                throws FormException {
+            cacheSizeMegabytes = json.getInt("cacheSizeMegabytes");
+            save();
+            return true;
+        }
+
         public void doStartUpload(StaplerRequest req, StaplerResponse rsp)
                 throws IOException, ServletException {
             rsp.setContentType("text/html");
@@ -23,23 +23,38 @@
  */
 package org.jenkinsci.plugins.lsf;
 
+import com.trilead.ssh2.ChannelCondition;
+import com.trilead.ssh2.Connection;
+import com.trilead.ssh2.Session;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Label;
 import hudson.model.Node;
+import hudson.plugins.sshslaves.SSHLauncher;
+import hudson.remoting.Which;
 import hudson.slaves.Cloud;
+import hudson.slaves.CommandLauncher;
+import hudson.slaves.ComputerLauncher;
 import hudson.slaves.NodeProvisioner;
 import hudson.slaves.NodeProvisioner.PlannedNode;
+import hudson.util.ListBoxModel;
+import hudson.util.QuotedStringTokenizer;
 import hudson.util.Secret;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.logging.Logger;
+import jenkins.model.Jenkins;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
 /**
  *
@@ -59,10 +74,49 @@ public class LSFCloud extends Cloud {
     // credentials for connecting to the slave computer through ssh 
     private String username;
     private Secret password;
+    // how the slaves are launched (ssh, local or inbound)
+    private String launcherType;
+    // how many executors a slave running as an LSF job has at most
+    private Integer executorsPerJob;
+    // the JVM options of the slaves and whether the slaves (started by the
+    // local or inbound launcher) use a class data sharing archive
+    private String jvmOptions;
+    private boolean classDataSharing;
+    // the time limit of the LSF commands in seconds
+    private Integer commandTimeoutSeconds;
+    // how long the status of a job can be unavailable before its build fails
+    private Integer maxOutageMinutes;
+    // limits for the job submissions to the cluster
+    private Integer maxConcurrentSubmissions;
+    private Integer maxSubmissionsPerSecond;
+    // whether the slave workspaces are on a filesystem shared with the
+    // execution hosts
+    private boolean sharedFilesystem;
+    // how long the short jobs of different builds are gathered into one LSF
+    // job (zero disables packing), how many jobs are packed together at most
+    // and whether the packed jobs run in parallel
+    private Integer packingWindowSeconds;
+    private Integer maxPackSize;
+    private boolean packParallel;
+    // the longest median run time (in seconds) of a project's earlier jobs
+    // for its jobs to be packed
+    private Integer maxPackedRunSeconds;
 
     private static final Logger LOGGER = Logger
             .getLogger(LSFCloud.class.getName());
 
+    public static final int DEFAULT_COMMAND_TIMEOUT = 60;
+    public static final int DEFAULT_MAX_OUTAGE = 30;
+    // the first Java version which creates archives when the JVM exits
+    private static final int DYNAMIC_ARCHIVE_VERSION = 13;
+    // how long connecting to the LSF host through SSH can take
+    private static final int CONNECT_TIMEOUT_MILLIS = 30000;
+
+    public static final String LAUNCHER_SSH = "ssh";
+    public static final String LAUNCHER_LOCAL = "local";
+    public static final String LAUNCHER_INBOUND = "inbound";
+    public static final String LAUNCHER_JOB = "job";
+
     @DataBoundConstructor
     public LSFCloud(String cloudName, String queueType, String label,
             String hostname, int port, String username, String password) {
@@ -87,22 +141,157 @@ public class LSFCloud extends Cloud {
     public Collection<NodeProvisioner.PlannedNode> provision(Label label,
             final int excessWorkload) {
         List<PlannedNode> list = new ArrayList<PlannedNode>();
-        list.add(new PlannedNode(this.getDisplayName(),
+        if (LAUNCHER_JOB.equals(getLauncherType())) {
+            // the workload is split into LSF jobs of limited size
+            int remaining = excessWorkload;
+            while (remaining > 0) {
+                int executors = Math.min(remaining, getExecutorsPerJob());
+                list.add(createPlannedNode(executors));
+                remaining -= executors;
+            }
+            return list;
+        }
+        list.add(createPlannedNode(excessWorkload));
+        return list;
+    }
+
+    private PlannedNode createPlannedNode(final int numExecutors) {
+        return new PlannedNode(this.getDisplayName(),
                 Computer.threadPoolForRemoting.submit(new Callable<Node>() {
                     @Override
                     public Node call() throws Exception {
-                        LSFSlave s = doProvision(excessWorkload);
+                        LSFSlave s = doProvision(numExecutors);
                         return s;
                     }
-                }), excessWorkload));
-        return list;
+                }), numExecutors);
     }
 
     private LSFSlave doProvision(int numExecutors) 
             throws Descriptor.FormException, IOException {
         String name = "LSF-jenkins-" + UUID.randomUUID().toString();
-        return new LSFSlave(name, this.label, numExecutors, hostname, port, 
-                username, password);
+        if (LAUNCHER_LOCAL.equals(getLauncherType())) {
+            // the slave runs in a process of the master's machine
+            File remoteFS = new File(System.getProperty("user.home"),
+                    "jenkins");
+            return new LSFSlave(name, cloudName, this.label, numExecutors,
+                    remoteFS.getAbsolutePath(), new CommandLauncher(
+                            getLocalCommand(name)));
+        }
+        ComputerLauncher launcher;
+        if (LAUNCHER_INBOUND.equals(getLauncherType())) {
+            launcher = new LSFInboundLauncher(cloudName);
+        } else if (LAUNCHER_JOB.equals(getLauncherType())) {
+            launcher = new LSFJobLauncher(cloudName);
+        } else {
+            // SSHLauncher copies slave.jar on every launch, so only the JVM
+            // options apply
+            launcher = new SSHLauncher(hostname, port, username,
+                    Secret.toString(password), "",
+                    Util.fixNull(jvmOptions).trim());
+        }
+        return new LSFSlave(name, cloudName, this.label, numExecutors,
+                "jenkins", launcher);
+    }
+
+    /**
+     * @param name the name of the slave
+     * @return the command which starts a slave process in the master's
+     * machine
+     * @throws IOException
+     */
+    private String getLocalCommand(String name) throws IOException {
+        File java = new File(System.getProperty("java.home"), "bin/java");
+        File slaveJar = Which.jarFile(hudson.remoting.Launcher.class);
+        File archive = new File(Jenkins.getInstance().getRootDir(),
+                "lsf-slave/" + getSlaveJarName() + ".jsa");
+        archive.getParentFile().mkdirs();
+        // the archive is created when the first slave exits and used by
+        // the next slaves (the slaves run on the master's JVM version)
+        String options = Util.fixNull(jvmOptions).trim();
+        boolean archiving = false;
+        String temporary = RemoteShell.quote(archive.getPath() + "." + name);
+        if (classDataSharing && getJavaVersion(System.getProperty(
+                "java.specification.version")) >= DYNAMIC_ARCHIVE_VERSION) {
+            archiving = !archive.isFile();
+            options = options + " -XX:" + (archiving
+                    ? "ArchiveClassesAtExit=" + temporary
+                    : "SharedArchiveFile="
+                    + RemoteShell.quote(archive.getPath()));
+        }
+        String command = RemoteShell.quote(java.getPath()) + " "
+                + options.trim() + " -jar "
+                + RemoteShell.quote(slaveJar.getPath());
+        if (archiving) {
+            // CommandLauncher doesn't run the command in a shell
+            command = "sh -c " + QuotedStringTokenizer.quote(moveArchive(
+                    command, temporary,
+                    RemoteShell.quote(archive.getPath())));
+        }
+        return command;
+    }
+
+    /**
+     * @param slaveCommand the command which runs the slave
+     * @param temporaryArchive the quoted path the slave archives its classes
+     * to when it exits
+     * @param archive the quoted path of the class data sharing archive
+     * @return the shell command which runs the slave and then moves its
+     * archive into place (several slaves may exit at once, so each one
+     * writes its own file and the complete file is renamed atomically)
+     */
+    static String moveArchive(String slaveCommand, String temporaryArchive,
+            String archive) {
+        return slaveCommand + "; test ! -f " + temporaryArchive + " || mv -f "
+                + temporaryArchive + " " + archive;
+    }
+
+    /**
+     * @param specificationVersion such as 1.8 or 13
+     * @return the major version of Java (0 if it is unknown)
+     */
+    static int getJavaVersion(String specificationVersion) {
+        String version = Util.fixNull(specificationVersion);
+        if (version.startsWith("1.")) {
+            version = version.substring(2);
+        }
+        int end = version.indexOf('.');
+        try {
+            return Integer.parseInt(end < 0 ? version
+                    : version.substring(0, end));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * @return the name of slave.jar in the caches of the slave hosts (the
+     * file depends on the version of Jenkins)
+     */
+    static String getSlaveJarName() {
+        return "slave-" + Util.fixNull(Jenkins.getVersion())
+                .replaceAll("[^A-Za-z0-9._-]", "_") + ".jar";
+    }
+
+    /**
+     * @param archive the path of the class data sharing archive in the
+     * slave host
+     * @param temporaryArchive the path the slave archives its classes to,
+     * which is moved to the archive's path once the slave exits
+     * @return the options of the slave JVM (a shell expression, which uses
+     * the archive if it has been created already and creates it only if the
+     * JVM of the host supports ArchiveClassesAtExit)
+     */
+    String getSlaveJvmOptions(String archive, String temporaryArchive) {
+        String options = Util.fixNull(jvmOptions).trim();
+        if (classDataSharing) {
+            options = options + " $(test -f \"" + archive
+                    + "\" && echo -XX:SharedArchiveFile=\"" + archive
+                    + "\" || { java -XX:+PrintFlagsFinal -version 2>/dev/null"
+                    + " | grep -q ArchiveClassesAtExit"
+                    + " && echo -XX:ArchiveClassesAtExit=\""
+                    + temporaryArchive + "\"; })";
+        }
+        return options.trim();
     }
 
     /**
@@ -120,6 +309,102 @@ public class LSFCloud extends Cloud {
         return false;
     }
 
+    /**
+     * runs a command on the LSF host of the cloud through SSH (independently
+     * of the slaves, which may be offline)
+     *
+     * @param command
+     * @return the output of the command (both stdout and stderr)
+     * @throws IOException if the command fails or takes longer than the
+     * command timeout
+     */
+    public String runCommand(String command) throws IOException {
+        long deadline = System.currentTimeMillis()
+                + getCommandTimeoutSeconds() * 1000L;
+        Connection connection = new Connection(hostname, port);
+        try {
+            connection.connect(null, CONNECT_TIMEOUT_MILLIS,
+                    CONNECT_TIMEOUT_MILLIS);
+            if (!connection.authenticateWithPassword(username,
+                    Secret.toString(password))) {
+                throw new IOException("Authentication failed for "
+                        + username + "@" + hostname);
+            }
+            Session session = connection.openSession();
+            try {
+                session.execCommand(command + " 2>&1");
+                return readOutput(session, deadline, command);
+            } finally {
+                session.close();
+            }
+        } finally {
+            connection.close();
+        }
+    }
+
+    /**
+     * @return the output of the session until its end or the deadline
+     */
+    private String readOutput(Session session, long deadline, String command)
+            throws IOException {
+        InputStream in = session.getStdout();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        while (true) {
+            int n = in.available();
+            if (n > 0) {
+                n = in.read(buffer, 0, Math.min(n, buffer.length));
+                output.write(buffer, 0, n);
+                continue;
+            }
+            long remaining = deadline - System.currentTimeMillis();
+            // a timeout of 0 would wait forever
+            int conditions = remaining > 0 ? session.waitForCondition(
+                    ChannelCondition.STDOUT_DATA | ChannelCondition.EOF
+                    | ChannelCondition.CLOSED, remaining)
+                    : ChannelCondition.TIMEOUT;
+            if ((conditions & ChannelCondition.TIMEOUT) != 0) {
+                throw new IOException("Command timed out on " + hostname
+                        + ": " + command);
+            }
+            if ((conditions & ChannelCondition.STDOUT_DATA) == 0
+                    && (conditions & (ChannelCondition.EOF
+                    | ChannelCondition.CLOSED)) != 0) {
+                return output.toString("UTF-8");
+            }
+        }
+    }
+
+    /**
+     * @param label
+     * @return the LSF cloud associated with the label or null if there is
+     * none
+     */
+    public static LSFCloud getCloud(Label label) {
+        if (label == null) {
+            return null;
+        }
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof LSFCloud && cloud.canProvision(label)) {
+                return (LSFCloud) cloud;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the dispatcher of the job submissions to the cluster
+     */
+    public SubmissionDispatcher getSubmissionDispatcher() {
+        return SubmissionDispatcher.get(hostname + ":" + port,
+                getMaxConcurrentSubmissions(), getMaxSubmissionsPerSecond());
+    }
+
+    public JobPacker getJobPacker() {
+        return JobPacker.get(hostname + ":" + port, getPackingWindowSeconds(),
+                getMaxPackSize(), packParallel);
+    }
+
     public void setCloudName(String cloudName) {
         this.cloudName = cloudName;
     }
@@ -176,6 +461,131 @@ public class LSFCloud extends Cloud {
         this.password = Secret.fromString(password);
     }
 
+    public String getLauncherType() {
+        return launcherType == null ? LAUNCHER_SSH : launcherType;
+    }
+
+    @DataBoundSetter
+    public void setLauncherType(String launcherType) {
+        this.launcherType = launcherType;
+    }
+
+    public int getExecutorsPerJob() {
+        return executorsPerJob == null ? 1 : executorsPerJob;
+    }
+
+    @DataBoundSetter
+    public void setExecutorsPerJob(int executorsPerJob) {
+        this.executorsPerJob = Math.max(1, executorsPerJob);
+    }
+
+    public String getJvmOptions() {
+        return jvmOptions;
+    }
+
+    @DataBoundSetter
+    public void setJvmOptions(String jvmOptions) {
+        this.jvmOptions = jvmOptions;
+    }
+
+    public boolean getClassDataSharing() {
+        return classDataSharing;
+    }
+
+    @DataBoundSetter
+    public void setClassDataSharing(boolean classDataSharing) {
+        this.classDataSharing = classDataSharing;
+    }
+
+    public int getCommandTimeoutSeconds() {
+        return commandTimeoutSeconds == null
+                ? DEFAULT_COMMAND_TIMEOUT : commandTimeoutSeconds;
+    }
+
+    @DataBoundSetter
+    public void setCommandTimeoutSeconds(int commandTimeoutSeconds) {
+        this.commandTimeoutSeconds = commandTimeoutSeconds;
+    }
+
+    public int getMaxOutageMinutes() {
+        return maxOutageMinutes == null
+                ? DEFAULT_MAX_OUTAGE : maxOutageMinutes;
+    }
+
+    @DataBoundSetter
+    public void setMaxOutageMinutes(int maxOutageMinutes) {
+        this.maxOutageMinutes = Math.max(1, maxOutageMinutes);
+    }
+
+    public int getMaxConcurrentSubmissions() {
+        return maxConcurrentSubmissions == null
+                ? SubmissionDispatcher.DEFAULT_MAX_CONCURRENT
+                : maxConcurrentSubmissions;
+    }
+
+    @DataBoundSetter
+    public void setMaxConcurrentSubmissions(int maxConcurrentSubmissions) {
+        this.maxConcurrentSubmissions = maxConcurrentSubmissions;
+    }
+
+    public int getMaxSubmissionsPerSecond() {
+        return maxSubmissionsPerSecond == null
+                ? SubmissionDispatcher.DEFAULT_MAX_PER_SECOND
+                : maxSubmissionsPerSecond;
+    }
+
+    @DataBoundSetter
+    public void setMaxSubmissionsPerSecond(int maxSubmissionsPerSecond) {
+        this.maxSubmissionsPerSecond = maxSubmissionsPerSecond;
+    }
+
+    public boolean getSharedFilesystem() {
+        return sharedFilesystem;
+    }
+
+    @DataBoundSetter
+    public void setSharedFilesystem(boolean sharedFilesystem) {
+        this.sharedFilesystem = sharedFilesystem;
+    }
+
+    public int getPackingWindowSeconds() {
+        return packingWindowSeconds == null ? 0 : packingWindowSeconds;
+    }
+
+    @DataBoundSetter
+    public void setPackingWindowSeconds(int packingWindowSeconds) {
+        this.packingWindowSeconds = Math.max(0, packingWindowSeconds);
+    }
+
+    public int getMaxPackSize() {
+        return maxPackSize == null
+                ? JobPacker.DEFAULT_MAX_PACK_SIZE : maxPackSize;
+    }
+
+    @DataBoundSetter
+    public void setMaxPackSize(int maxPackSize) {
+        this.maxPackSize = Math.max(1, maxPackSize);
+    }
+
+    public int getMaxPackedRunSeconds() {
+        return maxPackedRunSeconds == null
+                ? JobPacker.DEFAULT_MAX_RUN_TIME : maxPackedRunSeconds;
+    }
+
+    @DataBoundSetter
+    public void setMaxPackedRunSeconds(int maxPackedRunSeconds) {
+        this.maxPackedRunSeconds = Math.max(1, maxPackedRunSeconds);
+    }
+
+    public boolean getPackParallel() {
+        return packParallel;
+    }
+
+    @DataBoundSetter
+    public void setPackParallel(boolean packParallel) {
+        this.packParallel = packParallel;
+    }
+
     @Override
     public DescriptorImpl getDescriptor() {
         return (DescriptorImpl) super.getDescriptor();
@@ -188,5 +598,15 @@ public class LSFCloud extends Cloud {
         public String getDisplayName() {
             return "LSF Cloud";
         }
+
+        public ListBoxModel doFillLauncherTypeItems() {
+            ListBoxModel items = new ListBoxModel();
+            items.add("SSH to the LSF host", LAUNCHER_SSH);
+            items.add("Local process on the master", LAUNCHER_LOCAL);
+            items.add("Inbound slave started on the LSF host",
+                    LAUNCHER_INBOUND);
+            items.add("LSF job on a compute node", LAUNCHER_JOB);
+            return items;
+        }
     }
 }
@@ -0,0 +1,261 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.XmlFile;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Keeps the pending and run times of the last finished LSF jobs per queue
+ * and per project (in a queue) and predicts the times of new jobs from
+ * their medians.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFHistory {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(LSFHistory.class.getName());
+    // how many jobs are kept per queue and per project
+    private static final int MAX_SAMPLES = 50;
+    // how many jobs of a project are needed to predict from the project's
+    // jobs instead of all jobs in the queue
+    private static final int MIN_PROJECT_SAMPLES = 3;
+    // how long the jobs finishing after each other are saved together
+    private static final int SAVE_DELAY_SECONDS = 10;
+
+    private final Map<String, LinkedList<Sample>> queues
+            = new HashMap<String, LinkedList<Sample>>();
+    private final Map<String, LinkedList<Sample>> projects
+            = new HashMap<String, LinkedList<Sample>>();
+    private transient XmlFile file;
+    // whether a save of the recorded jobs is already scheduled
+    private transient boolean saveScheduled;
+
+    /**
+     * @param file
+     * @return the history stored in the file (empty if there is no file)
+     */
+    public static LSFHistory load(File file) {
+        XmlFile xmlFile = new XmlFile(file);
+        LSFHistory history = null;
+        if (xmlFile.exists()) {
+            try {
+                history = (LSFHistory) xmlFile.read();
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to load LSF job history", e);
+            }
+        }
+        if (history == null) {
+            history = new LSFHistory();
+        }
+        history.file = xmlFile;
+        return history;
+    }
+
+    /**
+     * stores the times of a finished job
+     *
+     * @param queue
+     * @param project the full name of the project
+     * @param pendingTime in seconds
+     * @param runTime in seconds
+     */
+    public synchronized void record(String queue, String project,
+            long pendingTime, long runTime) {
+        Sample sample = new Sample(pendingTime, runTime);
+        add(queues, queue, sample);
+        add(projects, queue + "/" + project, sample);
+        // the file is written once for all the jobs finishing meanwhile
+        if (!saveScheduled) {
+            saveScheduled = true;
+            Timer.get().schedule(new Runnable() {
+                @Override
+                public void run() {
+                    save();
+                }
+            }, SAVE_DELAY_SECONDS, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * removes the jobs of deleted projects and writes the history to its file
+     */
+    public synchronized void save() {
+        saveScheduled = false;
+        Jenkins jenkins = Jenkins.getInstance();
+        if (jenkins != null) {
+            Iterator<String> keys = projects.keySet().iterator();
+            while (keys.hasNext()) {
+                String key = keys.next();
+                // the queue names don't contain slashes, the folders do
+                String project = key.substring(key.indexOf('/') + 1);
+                if (jenkins.getItemByFullName(project) == null) {
+                    keys.remove();
+                }
+            }
+        }
+        try {
+            file.write(this);
+        } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to save LSF job history", e);
+        }
+    }
+
+    private static void add(Map<String, LinkedList<Sample>> samples,
+            String key, Sample sample) {
+        LinkedList<Sample> list = samples.get(key);
+        if (list == null) {
+            list = new LinkedList<Sample>();
+            samples.put(key, list);
+        }
+        list.add(sample);
+        while (list.size() > MAX_SAMPLES) {
+            list.removeFirst();
+        }
+    }
+
+    /**
+     * @param queue
+     * @param project the full name of the project
+     * @return the prediction from the project's jobs in the queue (or from
+     * all jobs in the queue if the project has too few), null if there are
+     * no jobs in the queue
+     */
+    public synchronized Prediction predict(String queue, String project) {
+        List<Sample> samples = projects.get(queue + "/" + project);
+        boolean fromProject = samples != null
+                && samples.size() >= MIN_PROJECT_SAMPLES;
+        if (!fromProject) {
+            samples = queues.get(queue);
+        }
+        if (samples == null || samples.isEmpty()) {
+            return null;
+        }
+        List<Long> pendingTimes = new ArrayList<Long>();
+        List<Long> runTimes = new ArrayList<Long>();
+        for (Sample sample : samples) {
+            pendingTimes.add(sample.pendingTime);
+            runTimes.add(sample.runTime);
+        }
+        return new Prediction(median(pendingTimes), median(runTimes),
+                samples.size(), fromProject);
+    }
+
+    /**
+     * @param queue
+     * @param project the full name of the project
+     * @param percentile between 1 and 100
+     * @return the percentile of the run times of the project's jobs in the
+     * queue in seconds, -1 if the project has too few jobs
+     */
+    public synchronized long getRunTimePercentile(String queue,
+            String project, int percentile) {
+        List<Sample> samples = projects.get(queue + "/" + project);
+        if (samples == null || samples.size() < MIN_PROJECT_SAMPLES) {
+            return -1;
+        }
+        List<Long> runTimes = new ArrayList<Long>();
+        for (Sample sample : samples) {
+            runTimes.add(sample.runTime);
+        }
+        Collections.sort(runTimes);
+        // the nearest rank
+        int rank = (int) Math.ceil(percentile / 100.0 * runTimes.size());
+        return runTimes.get(Math.min(Math.max(rank, 1), runTimes.size()) - 1);
+    }
+
+    private static long median(List<Long> values) {
+        Collections.sort(values);
+        int middle = values.size() / 2;
+        if (values.size() % 2 == 0) {
+            return (values.get(middle - 1) + values.get(middle)) / 2;
+        }
+        return values.get(middle);
+    }
+
+    /**
+     * the times of a finished job
+     */
+    private static class Sample {
+
+        private final long pendingTime;
+        private final long runTime;
+
+        private Sample(long pendingTime, long runTime) {
+            this.pendingTime = pendingTime;
+            this.runTime = runTime;
+        }
+    }
+
+    /**
+     * the predicted (median) times of a job in seconds
+     */
+    public static class Prediction {
+
+        private final long pendingTime;
+        private final long runTime;
+        // how many jobs the prediction is based on
+        private final int samples;
+        // whether only the jobs of the same project were used
+        private final boolean fromProject;
+
+        private Prediction(long pendingTime, long runTime, int samples,
+                boolean fromProject) {
+            this.pendingTime = pendingTime;
+            this.runTime = runTime;
+            this.samples = samples;
+            this.fromProject = fromProject;
+        }
+
+        public long getPendingTime() {
+            return pendingTime;
+        }
+
+        public long getRunTime() {
+            return runTime;
+        }
+
+        public int getSamples() {
+            return samples;
+        }
+
+        public boolean isFromProject() {
+            return fromProject;
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.SlaveComputer;
+import java.io.IOException;
+import jenkins.model.Jenkins;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Launches an inbound (JNLP) slave: the slave process is started on the LSF
+ * host of the cloud and connects to Jenkins by itself, so the SSH launcher's
+ * handshake and slave bootstrap are skipped.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFInboundLauncher extends JNLPLauncher {
+
+    // the directory (in the home of the LSF host's user) where slave.jar
+    // and its class data sharing archive are kept
+    private static final String CACHE_DIRECTORY = ".jenkins-lsf";
+    // the name of the cloud whose host starts the slave
+    private final String cloudName;
+
+    @DataBoundConstructor
+    public LSFInboundLauncher(String cloudName) {
+        super(null, null);
+        this.cloudName = cloudName;
+    }
+
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    @Override
+    public boolean isLaunchSupported() {
+        return true;
+    }
+
+    /**
+     * starts the slave process on the LSF host, which then connects back
+     *
+     * @param computer
+     * @param listener
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @Override
+    public void launch(SlaveComputer computer, TaskListener listener)
+            throws IOException, InterruptedException {
+        Cloud cloud = Jenkins.getInstance().clouds.getByName(cloudName);
+        if (!(cloud instanceof LSFCloud)) {
+            throw new IOException("LSF cloud " + cloudName + " not found");
+        }
+        String output = ((LSFCloud) cloud).runCommand(
+                getStartCommand((LSFCloud) cloud, computer));
+        listener.getLogger().println(output);
+        slaveStarted(computer, output);
+    }
+
+    /**
+     * called after the slave process has been started
+     *
+     * @param computer
+     * @param output the output of the start command
+     * @throws IOException
+     */
+    protected void slaveStarted(SlaveComputer computer, String output)
+            throws IOException {
+    }
+
+    /**
+     * @param cloud
+     * @param computer
+     * @return the shell command which starts the slave process in the
+     * background
+     * @throws IOException
+     */
+    protected String getStartCommand(LSFCloud cloud, SlaveComputer computer)
+            throws IOException {
+        String rootUrl = Jenkins.getInstance().getRootUrl();
+        if (rootUrl == null) {
+            throw new IOException("The Jenkins URL is not configured");
+        }
+        String directory = computer.getNode().getRemoteFS();
+        // slave.jar is downloaded once per Jenkins version (atomically,
+        // as several slaves may start at once), so that its class data
+        // sharing archive stays valid
+        String cache = "\"$HOME/" + CACHE_DIRECTORY + "\"";
+        String slaveJar = "\"$HOME/" + CACHE_DIRECTORY + "/"
+                + LSFCloud.getSlaveJarName() + "\"";
+        // the slave archives its classes into its own file, which is moved
+        // into place when it exits
+        String archive = "$HOME/" + CACHE_DIRECTORY + "/"
+                + LSFCloud.getSlaveJarName() + ".jsa";
+        String temporaryArchive = archive + "." + computer.getName();
+        String slaveCommand = "java "
+                + cloud.getSlaveJvmOptions(archive, temporaryArchive)
+                + " -jar " + slaveJar + " -jnlpUrl "
+                + RemoteShell.quote(rootUrl + "computer/"
+                        + computer.getName() + "/slave-agent.jnlp")
+                + " -secret " + computer.getJnlpMac();
+        if (cloud.getClassDataSharing()) {
+            slaveCommand = "sh -c " + RemoteShell.quote(
+                    LSFCloud.moveArchive(slaveCommand,
+                            "\"" + temporaryArchive + "\"",
+                            "\"" + archive + "\""));
+        }
+        return "mkdir -p " + RemoteShell.quote(directory) + " " + cache
+                + " && cd " + RemoteShell.quote(directory)
+                + " && { test -s " + slaveJar
+                + " || { curl -sSf -o " + slaveJar + ".$$ "
+                + RemoteShell.quote(rootUrl + "jnlpJars/slave.jar")
+                + " && mv -f " + slaveJar + ".$$ " + slaveJar + "; }; }"
+                + " && " + startSlave(cloud, computer, slaveCommand);
+    }
+
+    /**
+     * @param cloud
+     * @param computer
+     * @param slaveCommand the command which runs the slave
+     * @return the shell command which runs the slave command in the
+     * background
+     */
+    protected String startSlave(LSFCloud cloud, SlaveComputer computer,
+            String slaveCommand) {
+        return "(nohup " + slaveCommand + " > " + getLogFile(computer)
+                + " 2>&1 < /dev/null &)";
+    }
+
+    /**
+     * @param computer
+     * @return the quoted name of the slave's log file (the slaves of a
+     * cloud share the remote directory, so every slave has its own log)
+     */
+    protected static String getLogFile(SlaveComputer computer) {
+        return RemoteShell.quote("slave-" + computer.getName() + ".log");
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
+
+        @Override
+        public String getDisplayName() {
+            return "Launch inbound slave from the LSF host";
+        }
+    }
+}
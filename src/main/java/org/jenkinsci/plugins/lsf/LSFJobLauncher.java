@@ -0,0 +1,87 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.SlaveComputer;
+import java.io.IOException;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Launches an inbound slave as an LSF job, so that the slave runs on
+ * a compute node of the cluster and the builds run there directly. The job
+ * is submitted from the LSF host of the cloud and requests one slot per
+ * executor (on the same compute node). slave.jar is kept in the home
+ * directory of the LSF host's user, which must be shared with the compute
+ * nodes.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFJobLauncher extends LSFInboundLauncher {
+
+    @DataBoundConstructor
+    public LSFJobLauncher(String cloudName) {
+        super(cloudName);
+    }
+
+    @Override
+    protected String startSlave(LSFCloud cloud, SlaveComputer computer,
+            String slaveCommand) {
+        return "LSB_JOB_REPORT_MAIL=N bsub -q "
+                + RemoteShell.quote(cloud.getQueueType())
+                + " -J " + RemoteShell.quote(
+                        LSFJobReaper.getSlaveJobName(computer.getName()))
+                + " -n " + computer.getNode().getNumExecutors()
+                + " -R \"span[hosts=1]\" -o " + getLogFile(computer) + " "
+                + slaveCommand + " < /dev/null";
+    }
+
+    /**
+     * stores the id of the job, which is killed when the slave is terminated
+     *
+     * @param computer
+     * @param output the output of bsub
+     * @throws IOException
+     */
+    @Override
+    protected void slaveStarted(SlaveComputer computer, String output)
+            throws IOException {
+        String jobId = LSF.parseJobId(output);
+        if (jobId == null) {
+            throw new IOException("LSF rejected the slave job");
+        }
+        ((LSFSlave) computer.getNode()).setJobId(jobId);
+    }
+
+    @Extension
+    public static class DescriptorImpl extends Descriptor<ComputerLauncher> {
+
+        @Override
+        public String getDisplayName() {
+            return "Launch slave as an LSF job";
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.FilePath;
+import hudson.model.Run;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+import javax.servlet.http.HttpServletResponse;
+import jenkins.model.RunAction2;
+import org.kohsuke.stapler.StaplerRequest;
+import org.kohsuke.stapler.StaplerResponse;
+
+/**
+ * Serves the full output of an LSF job from the compressed log file in the
+ * build directory. Parts of the output can be requested with the HTTP Range
+ * header (bytes of the uncompressed output), which are decompressed from the
+ * gzip member holding their first byte. While the job is running, the
+ * live page follows its output, which is fetched from LSF only when it is
+ * requested.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFJobOutputAction implements RunAction2 {
+
+    private final String jobId;
+    // the size of the uncompressed output
+    private long size;
+    private transient Run<?, ?> run;
+    // the source of the output while the job is running
+    private transient volatile LiveOutput liveOutput;
+
+    // how often the output of a running job is fetched from LSF at most
+    private static final long LIVE_REFRESH_MILLIS = 2000;
+    // how many bytes are sent to the live page at once at most
+    private static final int LIVE_CHUNK_SIZE = 64 * 1024;
+
+    public LSFJobOutputAction(Run<?, ?> run, String jobId) {
+        this.run = run;
+        this.jobId = jobId;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    void setSize(long size) {
+        this.size = size;
+    }
+
+    public Run<?, ?> getRun() {
+        return run;
+    }
+
+    /**
+     * serves the output of the running job from a spool file in the slave,
+     * which is refreshed with the batch system's progress file when the
+     * output is requested
+     *
+     * @param batchSystem
+     * @param spool
+     */
+    void setLiveOutput(BatchSystem batchSystem, FilePath spool) {
+        liveOutput = new LiveOutput(batchSystem, spool);
+    }
+
+    /**
+     * serves the output from the log file again (after the job has ended)
+     */
+    void clearLiveOutput() {
+        liveOutput = null;
+    }
+
+    public File getLogFile() {
+        return new File(run.getRootDir(), "lsfJob-" + jobId + ".log.gz");
+    }
+
+    /**
+     * @return the file with the offsets of the gzip members of the log file
+     */
+    public File getIndexFile() {
+        return new File(run.getRootDir(), "lsfJob-" + jobId + ".log.idx");
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "notepad.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "LSF Job " + jobId + " Output";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "lsfJob-" + jobId;
+    }
+
+    @Override
+    public void onAttached(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    @Override
+    public void onLoad(Run<?, ?> run) {
+        this.run = run;
+    }
+
+    /**
+     * sends the requested range of the output (the whole output if no range
+     * is requested)
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    public void doIndex(StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        File file = getLogFile();
+        if (!file.exists()) {
+            rsp.sendError(HttpServletResponse.SC_NOT_FOUND);
+            return;
+        }
+        long start = 0;
+        long end = size - 1;
+        String range = req.getHeader("Range");
+        if (range != null && range.startsWith("bytes=")
+                && !range.contains(",")) {
+            try {
+                String[] bounds = range.substring("bytes=".length())
+                        .trim().split("-", -1);
+                if (bounds[0].isEmpty()) {
+                    // the last bytes of the output
+                    start = Math.max(size - Long.parseLong(bounds[1]), 0);
+                } else {
+                    start = Long.parseLong(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(Long.parseLong(bounds[1]), end);
+                    }
+                }
+            } catch (NumberFormatException e) {
+                range = null;
+                start = 0;
+                end = size - 1;
+            }
+            if (range != null && start > end) {
+                rsp.setHeader("Content-Range", "bytes */" + size);
+                rsp.sendError(HttpServletResponse
+                        .SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+                return;
+            }
+        } else {
+            range = null;
+        }
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setHeader("Accept-Ranges", "bytes");
+        if (range != null) {
+            rsp.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+            rsp.setHeader("Content-Range",
+                    "bytes " + start + "-" + end + "/" + size);
+        }
+        writeRange(start, end - start + 1, rsp.getOutputStream());
+    }
+
+    /**
+     * sends the output from the given byte offset (the start parameter) for
+     * the progressive text of the live page
+     *
+     * @param req
+     * @param rsp
+     * @throws IOException
+     */
+    public void doProgressiveText(StaplerRequest req, StaplerResponse rsp)
+            throws IOException {
+        long start = 0;
+        try {
+            String parameter = req.getParameter("start");
+            if (parameter != null) {
+                start = Math.max(0, Long.parseLong(parameter));
+            }
+        } catch (NumberFormatException e) {
+            start = 0;
+        }
+        LiveOutput live = liveOutput;
+        byte[] data;
+        if (live != null) {
+            try {
+                data = live.read(start, LIVE_CHUNK_SIZE);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Interrupted while reading "
+                        + "the output of LSF job " + jobId);
+            }
+        } else if (getLogFile().exists() && start < size) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            writeRange(start, Math.min(size - start, LIVE_CHUNK_SIZE), out);
+            data = out.toByteArray();
+        } else {
+            data = new byte[0];
+        }
+        boolean moreData = live != null || start + data.length < size
+                || (run != null && run.isBuilding());
+        rsp.setContentType("text/plain;charset=UTF-8");
+        rsp.setHeader("X-Text-Size", String.valueOf(start + data.length));
+        if (moreData) {
+            rsp.setHeader("X-More-Data", "true");
+        }
+        rsp.getOutputStream().write(data);
+    }
+
+    /**
+     * writes a range of the uncompressed output to the given stream
+     *
+     * @param start the first byte of the range
+     * @param length the number of bytes in the range
+     * @param out
+     * @throws IOException
+     */
+    public void writeRange(long start, long length, OutputStream out)
+            throws IOException {
+        // the log of an older build without an index is read from the start
+        long chunk = 0;
+        long offset = 0;
+        File indexFile = getIndexFile();
+        if (indexFile.exists()) {
+            RandomAccessFile index = new RandomAccessFile(indexFile, "r");
+            try {
+                long chunks = index.length() / 8;
+                if (chunks > 0) {
+                    chunk = Math.min(start / JobOutputLog.CHUNK_SIZE,
+                            chunks - 1);
+                    index.seek(chunk * 8);
+                    offset = index.readLong();
+                }
+            } finally {
+                index.close();
+            }
+        }
+        FileInputStream file = new FileInputStream(getLogFile());
+        InputStream in = file;
+        try {
+            file.getChannel().position(offset);
+            in = new GZIPInputStream(file);
+            byte[] buffer = new byte[8192];
+            start -= chunk * JobOutputLog.CHUNK_SIZE;
+            long skipped = 0;
+            while (skipped < start) {
+                long n = in.skip(start - skipped);
+                if (n <= 0) {
+                    return;
+                }
+                skipped += n;
+            }
+            while (length > 0) {
+                int n = in.read(buffer, 0,
+                        (int) Math.min(buffer.length, length));
+                if (n < 0) {
+                    break;
+                }
+                out.write(buffer, 0, n);
+                length -= n;
+            }
+        } catch (EOFException e) {
+            // the log of a running job has no gzip trailer yet
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * the output of the running job, fetched from LSF on demand
+     */
+    private class LiveOutput {
+
+        private final BatchSystem batchSystem;
+        private final FilePath spool;
+        private long lastRefresh;
+
+        private LiveOutput(BatchSystem batchSystem, FilePath spool) {
+            this.batchSystem = batchSystem;
+            this.spool = spool;
+        }
+
+        /**
+         * @param start
+         * @param length
+         * @return the bytes of the output in the range (refreshed from LSF
+         * if the spool is older than the refresh interval, so that several
+         * viewers share the fetches)
+         * @throws IOException
+         * @throws InterruptedException
+         */
+        private synchronized byte[] read(long start, int length)
+                throws IOException, InterruptedException {
+            if (System.currentTimeMillis() - lastRefresh
+                    > LIVE_REFRESH_MILLIS) {
+                batchSystem.createJobProgressFile(jobId, spool.getName());
+                lastRefresh = System.currentTimeMillis();
+            }
+            return spool.act(new RemoteFileRange(start, length));
+        }
+    }
+}
@@ -0,0 +1,225 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+
+/**
+ * Periodically kills the LSF jobs submitted by this Jenkins whose builds
+ * are not running anymore (for example when a build was aborted hard or the
+ * slave was disconnected before the job could be killed). The jobs are
+ * recognized by their job names, which contain the build identity. The LSF
+ * project (-P) isn't used for this because sites use it for accounting.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@Extension
+public class LSFJobReaper extends AsyncPeriodicWork {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(LSFJobReaper.class.getName());
+
+    // the part of the job name which marks the jobs running slaves
+    private static final String SLAVE_JOB = "slave:";
+    // the part of the job name which marks the jobs packing several builds
+    private static final String PACK_JOB = "pack:";
+
+    public LSFJobReaper() {
+        super("LSF job reaper");
+    }
+
+    @Override
+    public long getRecurrencePeriod() {
+        return 10 * MIN;
+    }
+
+    /**
+     * @return the prefix of the names of all jobs submitted by this Jenkins
+     */
+    public static String getJobNamePrefix() {
+        String instanceId = Jenkins.getInstance().getLegacyInstanceId();
+        return "jenkins-" + instanceId.substring(0,
+                Math.min(8, instanceId.length())) + ":";
+    }
+
+    /**
+     * @param run
+     * @return the LSF job name for the jobs submitted by the given build
+     */
+    public static String getJobName(Run<?, ?> run) {
+        return getJobNamePrefix() + encode(run.getExternalizableId());
+    }
+
+    /**
+     * @param nodeName
+     * @return the LSF job name for the job running the given slave
+     */
+    public static String getSlaveJobName(String nodeName) {
+        return getJobNamePrefix() + SLAVE_JOB + encode(nodeName);
+    }
+
+    /**
+     * @param runIds the externalizable ids of the builds
+     * @return the LSF job name for a job which runs the jobs of the given
+     * builds (see JobPacker)
+     */
+    public static String getPackJobName(List<String> runIds) {
+        StringBuilder name = new StringBuilder(getJobNamePrefix())
+                .append(PACK_JOB);
+        for (int i = 0; i < runIds.size(); i++) {
+            name.append(i > 0 ? "," : "").append(encode(runIds.get(i)));
+        }
+        return name.toString();
+    }
+
+    /**
+     * LSF reads a job name ending in [...] as a job array, so the brackets
+     * (and the commas separating packed builds) are escaped
+     *
+     * @param name
+     * @return the name without brackets and commas
+     */
+    static String encode(String name) {
+        return name.replace("%", "%25").replace("[", "%5B")
+                .replace("]", "%5D").replace(",", "%2C");
+    }
+
+    /**
+     * @param name
+     * @return the name with the escaped characters restored
+     */
+    static String decode(String name) {
+        return name.replace("%2C", ",").replace("%5D", "]")
+                .replace("%5B", "[").replace("%25", "%");
+    }
+
+    @Override
+    protected void execute(TaskListener listener)
+            throws IOException, InterruptedException {
+        for (Cloud cloud : Jenkins.getInstance().clouds) {
+            if (cloud instanceof LSFCloud) {
+                try {
+                    reap((LSFCloud) cloud);
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to check for orphaned "
+                            + "jobs in " + cloud.getDisplayName(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * lists all unfinished jobs of this Jenkins with one bjobs query and
+     * kills the ones without a running build with one bkill command
+     *
+     * @param cloud
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private void reap(LSFCloud cloud)
+            throws IOException, InterruptedException {
+        String prefix = getJobNamePrefix();
+        String output = cloud.runCommand("bjobs -noheader -o "
+                + "\"jobid stat job_name delimiter=';'\" -J "
+                + RemoteShell.quote(prefix + "*"));
+        List<String> orphans = findOrphans(prefix, output);
+        if (!orphans.isEmpty()) {
+            LOGGER.log(Level.INFO, "Killing orphaned LSF jobs {0}", orphans);
+            StringBuilder command = new StringBuilder("bkill");
+            for (String jobId : orphans) {
+                command.append(' ').append(jobId);
+            }
+            cloud.runCommand(command.toString());
+        }
+    }
+
+    /**
+     * @param prefix the prefix of the job names of this Jenkins
+     * @param output the output of bjobs (job id, status and job name
+     * separated by semicolons)
+     * @return the ids of the unfinished jobs whose slave or builds are gone
+     */
+    List<String> findOrphans(String prefix, String output) {
+        List<String> orphans = new ArrayList<String>();
+        for (String line : output.split("\n")) {
+            String[] fields = line.trim().split(";", 3);
+            if (fields.length < 3 || !fields[2].startsWith(prefix)
+                    || fields[1].equals("DONE") || fields[1].equals("EXIT")) {
+                continue;
+            }
+            String id = fields[2].substring(prefix.length());
+            if (id.startsWith(SLAVE_JOB)) {
+                // the slave is gone, for example after a restart
+                if (!isSlaveRunning(decode(
+                        id.substring(SLAVE_JOB.length())))) {
+                    orphans.add(fields[0]);
+                }
+                continue;
+            }
+            if (id.startsWith(PACK_JOB)) {
+                // the packed job is needed until all its builds are done
+                boolean building = false;
+                for (String runId
+                        : id.substring(PACK_JOB.length()).split(",")) {
+                    building |= isBuilding(decode(runId));
+                }
+                if (!building) {
+                    orphans.add(fields[0]);
+                }
+                continue;
+            }
+            if (!isBuilding(decode(id))) {
+                orphans.add(fields[0]);
+            }
+        }
+        return orphans;
+    }
+
+    /**
+     * @param nodeName
+     * @return whether the slave still exists
+     */
+    protected boolean isSlaveRunning(String nodeName) {
+        return Jenkins.getInstance().getNode(nodeName) != null;
+    }
+
+    /**
+     * @param runId the externalizable id of a build
+     * @return whether the build is still running
+     */
+    protected boolean isBuilding(String runId) {
+        Run<?, ?> run = Run.fromExternalizableId(runId);
+        return run != null && run.isBuilding();
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.Util;
+import hudson.model.Action;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * The predicted start and finish times of an LSF job (from the history of
+ * the finished jobs), shown on the build page and exposed through the API.
+ *
+ * @author Laisvydas Skurevicius
+ */
+@ExportedBean
+public class LSFPredictionAction implements Action {
+
+    private final String jobId;
+    private final String queue;
+    // the predicted times in milliseconds since the epoch
+    private long predictedStart;
+    private long predictedFinish;
+    // the predicted run time in seconds
+    private final long runTime;
+    // how many finished jobs the prediction is based on
+    private final int samples;
+    private final boolean fromProject;
+    // whether the job has started (the start time is then the actual one)
+    private boolean started;
+    private boolean finished;
+
+    public LSFPredictionAction(String jobId, String queue, long submitTime,
+            LSFHistory.Prediction prediction) {
+        this.jobId = jobId;
+        this.queue = queue;
+        this.predictedStart = submitTime + prediction.getPendingTime() * 1000;
+        this.runTime = prediction.getRunTime();
+        this.predictedFinish = predictedStart + runTime * 1000;
+        this.samples = prediction.getSamples();
+        this.fromProject = prediction.isFromProject();
+    }
+
+    /**
+     * updates the predicted finish from the actual start time
+     *
+     * @param startTime
+     */
+    void setStarted(long startTime) {
+        started = true;
+        predictedStart = startTime;
+        predictedFinish = startTime + runTime * 1000;
+    }
+
+    void setFinished() {
+        finished = true;
+    }
+
+    @Exported
+    public String getJobId() {
+        return jobId;
+    }
+
+    @Exported
+    public String getQueue() {
+        return queue;
+    }
+
+    @Exported
+    public long getPredictedStart() {
+        return predictedStart;
+    }
+
+    @Exported
+    public long getPredictedFinish() {
+        return predictedFinish;
+    }
+
+    @Exported
+    public int getSamples() {
+        return samples;
+    }
+
+    @Exported
+    public boolean isFromProject() {
+        return fromProject;
+    }
+
+    @Exported
+    public boolean isStarted() {
+        return started;
+    }
+
+    @Exported
+    public boolean isFinished() {
+        return finished;
+    }
+
+    /**
+     * @return the prediction as text relative to the current time
+     */
+    public String getSummary() {
+        long now = System.currentTimeMillis();
+        String summary = started ? "Job started"
+                : "Predicted job start " + getTimeText(predictedStart, now);
+        return summary + ", predicted finish "
+                + getTimeText(predictedFinish, now) + " (median of the last "
+                + samples + " jobs " + (fromProject ? "of this project " : "")
+                + "in queue " + queue + ")";
+    }
+
+    private static String getTimeText(long time, long now) {
+        if (time <= now) {
+            return "overdue by " + Util.getTimeSpanString(now - time);
+        }
+        return "in " + Util.getTimeSpanString(time - now);
+    }
+
+    @Override
+    public String getIconFileName() {
+        return null;
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "LSF Job " + jobId + " Prediction";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "lsfPrediction-" + jobId;
+    }
+}
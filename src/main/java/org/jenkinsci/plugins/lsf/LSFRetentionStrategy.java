@@ -39,6 +39,9 @@ public class LSFRetentionStrategy extends RetentionStrategy<SlaveComputer> {
     // The amount of minutes until a slave is terminated when idle
     public final int idleTerminationMinutes;
 
+    // how long a slave waits for its LSF job to start
+    private static final int PENDING_JOB_MINUTES = 60;
+
     private static final Logger LOGGER = Logger
             .getLogger(LSFRetentionStrategy.class.getName());
 
@@ -65,6 +68,14 @@ public class LSFRetentionStrategy extends RetentionStrategy<SlaveComputer> {
             return 1;
         }
 
+        // a slave running as an LSF job connects when the job starts
+        if (computer.isOffline() && ((LSFSlave) computer.getNode())
+                .isJobPending() && (System.currentTimeMillis()
+                - computer.getConnectTime())
+                < MINUTES.toMillis(PENDING_JOB_MINUTES)) {
+            return 1;
+        }
+
         if (computer.isOffline()) {
             LOGGER.log(Level.INFO, "Disconnecting offline computer {0}",
                     computer.getName());
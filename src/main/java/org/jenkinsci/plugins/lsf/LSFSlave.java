@@ -24,67 +24,103 @@
 package org.jenkinsci.plugins.lsf;
 
 import hudson.Extension;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
 import hudson.model.Node;
 import hudson.model.Slave;
+import hudson.slaves.ComputerLauncher;
+import hudson.slaves.EphemeralNode;
 import hudson.slaves.NodeProperty;
+import hudson.slaves.SlaveComputer;
 import java.io.IOException;
 import java.util.Collections;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import hudson.plugins.sshslaves.SSHLauncher;
-import hudson.util.Secret;
-import jenkins.model.Jenkins;
 
 /**
  *
  * @author Laisvydas Skurevicius
  */
-public class LSFSlave extends Slave {
+public class LSFSlave extends Slave implements EphemeralNode {
 
     private static final Logger LOGGER = Logger.getLogger(LSFSlave.class
             .getName());
 
+    // the cloud which provisioned the slave
+    private final String cloudName;
+    // the LSF job running the slave (if it is launched as an LSF job)
+    private String jobId;
+
     public LSFSlave(String name,
+            String cloudName,
             String label,
             int numExecutors,
-            String hostName,
-            int port,
-            String userName,
-            Secret password) throws Descriptor.FormException, IOException {
+            String remoteFS,
+            ComputerLauncher launcher)
+            throws Descriptor.FormException, IOException {
         super(name,
                 "",
-                "jenkins",
+                remoteFS,
                 numExecutors,
                 Node.Mode.NORMAL,
                 label,
-                new SSHLauncher(hostName, port, userName, 
-                        Secret.toString(password), "", ""),
+                launcher,
                 new LSFRetentionStrategy(1),
                 Collections.<NodeProperty<?>>emptyList());
+        this.cloudName = cloudName;
         LOGGER.log(Level.INFO, "Constructing LSF slave {0}", name);
     }
 
+    public String getCloudName() {
+        return cloudName;
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public void setJobId(String jobId) {
+        this.jobId = jobId;
+    }
+
+    /**
+     * @return true if the slave runs as an LSF job which has been submitted
+     * but the slave has not connected yet
+     */
+    public boolean isJobPending() {
+        SlaveComputer computer = getComputer();
+        return jobId != null && computer != null
+                && computer.getChannel() == null;
+    }
+
     /**
-     * terminates the slave
+     * terminates the slave (together with the other slaves terminated at
+     * the same time)
      */
     public void terminate() {
         LOGGER.log(Level.INFO, "Terminating slave {0}", getNodeName());
-        try {
-            Jenkins.getInstance().removeNode(this);
-        } catch (IOException e) {
-            LOGGER.log(Level.WARNING, "Failed to terminate LSF instance: "
-                    + getInstanceId(), e);
+        // no new builds are started on the slave while it waits
+        Computer computer = toComputer();
+        if (computer != null) {
+            computer.setAcceptingTasks(false);
         }
+        LSFSlaveTerminator.terminate(this);
     }
 
+    /**
+     * LSF slaves are not persisted, they are discarded on restart (their
+     * LSF jobs are killed by LSFJobReaper)
+     *
+     * @return this slave
+     */
     @Override
-    public DescriptorImpl getDescriptor() {
-        return (DescriptorImpl) super.getDescriptor();
+    public Node asNode() {
+        return this;
     }
 
-    private String getInstanceId() {
-        return getNodeName();
+    @Override
+    public DescriptorImpl getDescriptor() {
+        return (DescriptorImpl) super.getDescriptor();
     }
 
     @Extension
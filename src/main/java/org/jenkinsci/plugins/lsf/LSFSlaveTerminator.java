@@ -0,0 +1,154 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.Computer;
+import hudson.slaves.Cloud;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jenkins.model.Jenkins;
+import jenkins.util.Timer;
+
+/**
+ * Terminates LSF slaves in batches: the slaves terminated within a short
+ * time are removed from Jenkins together and their LSF jobs are killed with
+ * one bkill command per cloud.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFSlaveTerminator {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(LSFSlaveTerminator.class.getName());
+
+    // how long the terminations are collected before they are done
+    private static final long BATCH_DELAY_MILLIS = 1000;
+
+    // the slaves waiting to be terminated
+    private static final Set<LSFSlave> PENDING = new LinkedHashSet<LSFSlave>();
+    private static boolean scheduled;
+
+    private LSFSlaveTerminator() {
+    }
+
+    /**
+     * schedules the termination of the slave
+     *
+     * @param slave
+     */
+    public static synchronized void terminate(LSFSlave slave) {
+        if (!PENDING.add(slave) || scheduled) {
+            return;
+        }
+        scheduled = true;
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                terminatePending();
+            }
+        }, BATCH_DELAY_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    private static synchronized List<LSFSlave> takePending() {
+        List<LSFSlave> slaves = new ArrayList<LSFSlave>(PENDING);
+        PENDING.clear();
+        scheduled = false;
+        return slaves;
+    }
+
+    /**
+     * removes the pending slaves from Jenkins and kills their LSF jobs
+     */
+    private static void terminatePending() {
+        List<LSFSlave> slaves = takePending();
+        LOGGER.log(Level.INFO, "Terminating {0} LSF slaves", slaves.size());
+        Jenkins jenkins = Jenkins.getInstance();
+        for (LSFSlave slave : slaves) {
+            // removing an ephemeral node doesn't save the configuration
+            // (unlike setNodes, which writes every node)
+            try {
+                jenkins.removeNode(slave);
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove LSF slave "
+                        + slave.getNodeName(), e);
+            }
+        }
+        Map<String, List<String>> jobIds = new HashMap<String, List<String>>();
+        for (LSFSlave slave : slaves) {
+            if (slave.getJobId() == null) {
+                continue;
+            }
+            List<String> cloudJobIds = jobIds.get(slave.getCloudName());
+            if (cloudJobIds == null) {
+                cloudJobIds = new ArrayList<String>();
+                jobIds.put(slave.getCloudName(), cloudJobIds);
+            }
+            cloudJobIds.add(slave.getJobId());
+        }
+        for (Map.Entry<String, List<String>> entry : jobIds.entrySet()) {
+            killJobs(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * kills the LSF jobs of the slaves with one bkill command (in the
+     * background, through the LSF host of the cloud)
+     *
+     * @param cloudName
+     * @param jobIds
+     */
+    private static void killJobs(String cloudName, final List<String> jobIds) {
+        final Cloud cloud = Jenkins.getInstance().clouds.getByName(cloudName);
+        if (!(cloud instanceof LSFCloud)) {
+            // the jobs are killed by LSFJobReaper
+            LOGGER.log(Level.WARNING, "Cannot kill LSF jobs {0}, cloud {1} "
+                    + "not found", new Object[]{jobIds, cloudName});
+            return;
+        }
+        Computer.threadPoolForRemoting.submit(new Runnable() {
+            @Override
+            public void run() {
+                StringBuilder command = new StringBuilder("bkill");
+                for (String jobId : jobIds) {
+                    command.append(' ').append(jobId);
+                }
+                try {
+                    LOGGER.log(Level.INFO, ((LSFCloud) cloud)
+                            .runCommand(command.toString()));
+                } catch (IOException e) {
+                    LOGGER.log(Level.WARNING, "Failed to kill LSF jobs "
+                            + jobIds, e);
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+import hudson.model.Action;
+import hudson.util.ChartUtil.NumberOnlyBuildLabel;
+import hudson.util.DataSetBuilder;
+import hudson.util.Graph;
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import org.jfree.chart.ChartFactory;
+import org.jfree.chart.JFreeChart;
+import org.jfree.chart.axis.CategoryAxis;
+import org.jfree.chart.axis.CategoryLabelPositions;
+import org.jfree.chart.plot.CategoryPlot;
+import org.jfree.chart.plot.PlotOrientation;
+
+/**
+ * Shows the trends of the LSF job resource usage of the project's builds.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class LSFUsageProjectAction implements Action {
+
+    // how many last builds are shown in the graphs
+    private static final int MAX_BUILDS = 50;
+    // how many last builds are searched for usage at most
+    private static final int MAX_SEARCHED_BUILDS = 200;
+    // the usages of the projects, until their next build finishes
+    private static final Map<AbstractProject<?, ?>, CachedUsages> CACHE
+            = new WeakHashMap<AbstractProject<?, ?>, CachedUsages>();
+
+    private final AbstractProject<?, ?> project;
+
+    public LSFUsageProjectAction(AbstractProject<?, ?> project) {
+        this.project = project;
+    }
+
+    public AbstractProject<?, ?> getProject() {
+        return project;
+    }
+
+    /**
+     * @return the usage of the last builds (the newest first), the usage of
+     * builds which ran several LSF jobs is combined
+     */
+    public List<Usage> getUsages() {
+        // the usage is stored when a build finishes
+        AbstractBuild<?, ?> lastBuild = project.getLastBuild();
+        AbstractBuild<?, ?> lastCompleted = project.getLastCompletedBuild();
+        String key = (lastBuild == null ? "" : lastBuild.getId()) + "/"
+                + (lastCompleted == null ? "" : lastCompleted.getId());
+        synchronized (CACHE) {
+            CachedUsages cached = CACHE.get(project);
+            if (cached != null && cached.key.equals(key)) {
+                return cached.usages;
+            }
+        }
+        List<Usage> usages = new ArrayList<Usage>();
+        int searched = 0;
+        for (AbstractBuild<?, ?> build = lastBuild;
+                build != null && usages.size() < MAX_BUILDS
+                && searched < MAX_SEARCHED_BUILDS;
+                build = build.getPreviousBuild()) {
+            searched++;
+            List<LSFJobUsageAction> actions
+                    = build.getActions(LSFJobUsageAction.class);
+            if (!actions.isEmpty()) {
+                usages.add(new Usage(build, actions));
+            }
+        }
+        usages = Collections.unmodifiableList(usages);
+        synchronized (CACHE) {
+            CACHE.put(project, new CachedUsages(key, usages));
+        }
+        return usages;
+    }
+
+    public boolean hasData() {
+        return !getUsages().isEmpty();
+    }
+
+    public Graph getMemoryGraph() {
+        return new UsageGraph("Megabytes") {
+            @Override
+            protected void addValues(DataSetBuilder<String,
+                    NumberOnlyBuildLabel> data, Usage usage,
+                    NumberOnlyBuildLabel label) {
+                data.add(usage.getMaxMemory(), "Max memory", label);
+                data.add(usage.getMaxSwap(), "Max swap", label);
+            }
+        };
+    }
+
+    public Graph getTimeGraph() {
+        return new UsageGraph("Seconds") {
+            @Override
+            protected void addValues(DataSetBuilder<String,
+                    NumberOnlyBuildLabel> data, Usage usage,
+                    NumberOnlyBuildLabel label) {
+                data.add(usage.getRunTime(), "Run time", label);
+                data.add(usage.getPendingTime(), "Pending time", label);
+                data.add(usage.getCpuTime(), "CPU time", label);
+            }
+        };
+    }
+
+    @Override
+    public String getIconFileName() {
+        return "graph.png";
+    }
+
+    @Override
+    public String getDisplayName() {
+        return "LSF Usage Trend";
+    }
+
+    @Override
+    public String getUrlName() {
+        return "lsfUsage";
+    }
+
+    /**
+     * the combined usage of the LSF jobs of a build (maximum of the memory,
+     * sum of the times), a value is null if none of the jobs reported it
+     */
+    public static class Usage {
+
+        private final AbstractBuild<?, ?> build;
+        private Double maxMemory;
+        private Double maxSwap;
+        private Double cpuTime;
+        private Long pendingTime;
+        private Long runTime;
+
+        public Usage(AbstractBuild<?, ?> build,
+                List<LSFJobUsageAction> actions) {
+            this.build = build;
+            for (LSFJobUsageAction action : actions) {
+                if (action.getMaxMemory() >= 0) {
+                    maxMemory = Math.max(maxMemory == null ? 0 : maxMemory,
+                            action.getMaxMemory());
+                }
+                if (action.getMaxSwap() >= 0) {
+                    maxSwap = Math.max(maxSwap == null ? 0 : maxSwap,
+                            action.getMaxSwap());
+                }
+                if (action.getCpuTime() >= 0) {
+                    cpuTime = (cpuTime == null ? 0 : cpuTime)
+                            + action.getCpuTime();
+                }
+                if (action.getPendingTime() >= 0) {
+                    pendingTime = (pendingTime == null ? 0 : pendingTime)
+                            + action.getPendingTime();
+                }
+                if (action.getRunTime() >= 0) {
+                    runTime = (runTime == null ? 0 : runTime)
+                            + action.getRunTime();
+                }
+            }
+        }
+
+        public AbstractBuild<?, ?> getBuild() {
+            return build;
+        }
+
+        public Double getMaxMemory() {
+            return maxMemory;
+        }
+
+        public Double getMaxSwap() {
+            return maxSwap;
+        }
+
+        public Double getCpuTime() {
+            return cpuTime;
+        }
+
+        public Long getPendingTime() {
+            return pendingTime;
+        }
+
+        public Long getRunTime() {
+            return runTime;
+        }
+    }
+
+    /**
+     * the usages of a project and the last builds they were read after
+     */
+    private static class CachedUsages {
+
+        private final String key;
+        private final List<Usage> usages;
+
+        private CachedUsages(String key, List<Usage> usages) {
+            this.key = key;
+            this.usages = usages;
+        }
+    }
+
+    private abstract class UsageGraph extends Graph {
+
+        private final String unit;
+
+        protected UsageGraph(String unit) {
+            super(getTimestamp(), 500, 200);
+            this.unit = unit;
+        }
+
+        protected abstract void addValues(
+                DataSetBuilder<String, NumberOnlyBuildLabel> data,
+                Usage usage, NumberOnlyBuildLabel label);
+
+        @Override
+        protected JFreeChart createGraph() {
+            DataSetBuilder<String, NumberOnlyBuildLabel> data
+                    = new DataSetBuilder<String, NumberOnlyBuildLabel>();
+            // the unknown values are left out of the graph (null)
+            for (Usage usage : getUsages()) {
+                addValues(data, usage,
+                        new NumberOnlyBuildLabel(usage.getBuild()));
+            }
+            JFreeChart chart = ChartFactory.createLineChart(null, null, unit,
+                    data.build(), PlotOrientation.VERTICAL, true, true, false);
+            chart.setBackgroundPaint(Color.WHITE);
+            CategoryPlot plot = chart.getCategoryPlot();
+            plot.setBackgroundPaint(Color.WHITE);
+            plot.setRangeGridlinePaint(Color.BLACK);
+            CategoryAxis domainAxis = plot.getDomainAxis();
+            domainAxis.setCategoryLabelPositions(CategoryLabelPositions.UP_90);
+            domainAxis.setLowerMargin(0.0);
+            domainAxis.setUpperMargin(0.0);
+            domainAxis.setCategoryMargin(0.0);
+            return chart;
+        }
+    }
+
+    private Calendar getTimestamp() {
+        AbstractBuild<?, ?> build = project.getLastBuild();
+        return build == null ? Calendar.getInstance() : build.getTimestamp();
+    }
+}
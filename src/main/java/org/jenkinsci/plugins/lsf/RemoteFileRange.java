@@ -0,0 +1,78 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Reads a range of bytes from a file in the slave, so that only the new
+ * part of a growing file is sent to the master.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class RemoteFileRange extends MasterToSlaveFileCallable<byte[]> {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+    private final int length;
+
+    /**
+     * @param offset the position of the first byte to read
+     * @param length the maximum number of bytes to read
+     */
+    public RemoteFileRange(long offset, int length) {
+        this.offset = offset;
+        this.length = length;
+    }
+
+    /**
+     * @param file
+     * @param channel
+     * @return the bytes of the range (fewer than requested if the file ends
+     * before the end of the range, none if the file doesn't exist)
+     * @throws IOException
+     */
+    @Override
+    public byte[] invoke(File file, VirtualChannel channel)
+            throws IOException {
+        if (!file.isFile() || file.length() <= offset) {
+            return new byte[0];
+        }
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            byte[] data = new byte[(int) Math.min(length,
+                    input.length() - offset)];
+            input.seek(offset);
+            input.readFully(data);
+            return data;
+        } finally {
+            input.close();
+        }
+    }
+}
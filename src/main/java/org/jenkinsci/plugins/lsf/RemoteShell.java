@@ -0,0 +1,355 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.FilePath;
+import hudson.Launcher;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Serializable;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import jenkins.security.MasterToSlaveCallable;
+
+/**
+ * A long running shell process on the slave which executes the batch system
+ * commands. Commands are sent to it through the remoting channel, so running
+ * a command costs a message round trip instead of a new process and a
+ * temporary script file in the workspace. Every slave JVM keeps a small pool
+ * of shells, so a slow command only holds up the shell running it.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class RemoteShell {
+
+    // the idle shells of this slave and the number of shells in use or idle
+    private static final Deque<RemoteShell> idleShells
+            = new ArrayDeque<RemoteShell>();
+    private static int shellCount;
+    // the maximum number of shells of a slave JVM
+    private static final int MAX_SHELLS = 4;
+
+    private final Process process;
+    private final Writer input;
+    private final BufferedReader output;
+    // printed after every command to separate the responses
+    private final String marker;
+    // set when the responses can't be matched to the commands anymore
+    private boolean failed;
+    // the exit code of a command killed by its timeout
+    static final int TIMEOUT_EXIT_CODE = 124;
+    // the time limit of the commands run without an explicit one (seconds)
+    public static final int DEFAULT_TIMEOUT = 60;
+
+    private RemoteShell() throws IOException {
+        ProcessBuilder builder
+                = new ProcessBuilder("/bin/bash", "--noprofile", "--norc");
+        builder.redirectErrorStream(true);
+        process = builder.start();
+        input = new OutputStreamWriter(process.getOutputStream(), "UTF-8");
+        output = new BufferedReader(
+                new InputStreamReader(process.getInputStream(), "UTF-8"));
+        marker = "LSF-JENKINS-" + UUID.randomUUID().toString();
+    }
+
+    /**
+     * @return an idle shell of this slave, a new one is started if there are
+     * fewer shells than the maximum, otherwise waits for a shell to be
+     * released
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private static RemoteShell acquire()
+            throws IOException, InterruptedException {
+        synchronized (idleShells) {
+            while (true) {
+                while (!idleShells.isEmpty()) {
+                    RemoteShell shell = idleShells.pop();
+                    if (shell.isAlive()) {
+                        return shell;
+                    }
+                    shellCount--;
+                }
+                if (shellCount < MAX_SHELLS) {
+                    shellCount++;
+                    break;
+                }
+                idleShells.wait();
+            }
+        }
+        try {
+            return new RemoteShell();
+        } catch (IOException e) {
+            release(null);
+            throw e;
+        }
+    }
+
+    /**
+     * returns the given shell to the pool, a shell which failed is dropped
+     *
+     * @param shell the shell to release (null if it couldn't be started)
+     */
+    private static void release(RemoteShell shell) {
+        synchronized (idleShells) {
+            if (shell != null && shell.isAlive()) {
+                idleShells.push(shell);
+            } else {
+                shellCount--;
+            }
+            idleShells.notify();
+        }
+    }
+
+    private boolean isAlive() {
+        if (failed) {
+            return false;
+        }
+        try {
+            process.exitValue();
+            return false;
+        } catch (IllegalThreadStateException e) {
+            return true;
+        }
+    }
+
+    /**
+     * writes all the commands to the shell before reading any of the
+     * responses, so a batch of commands costs a single round trip
+     *
+     * @param directory the directory in which the commands are executed
+     * @param commands the commands to execute
+     * @return the result of every command (in the same order)
+     * @throws IOException if the shell terminated
+     */
+    private List<Result> run(String directory,
+            List<String> commands, int timeout) throws IOException {
+        try {
+            for (String command : commands) {
+                // the command is killed if it doesn't finish in time (exit
+                // code 124), so a hanging command can't block the shell
+                command = "timeout -k 5 " + timeout + " /bin/bash -c "
+                        + quote(command);
+                // the subshell keeps the directory change and any exit
+                // of the command from affecting the long running shell
+                input.write("(cd " + quote(directory) + " && " + command
+                        + "\n) < /dev/null 2>&1\n");
+                // the exit code is saved before the echo replaces it
+                input.write("rc=$?; echo; echo \"" + marker + " $rc\"\n");
+            }
+            input.flush();
+            List<Result> results = new ArrayList<Result>();
+            for (int i = 0; i < commands.size(); i++) {
+                StringBuilder text = new StringBuilder();
+                String line;
+                while ((line = output.readLine()) != null
+                        && !line.startsWith(marker)) {
+                    text.append(line).append('\n');
+                }
+                if (line == null) {
+                    throw new IOException("The command shell terminated "
+                            + "unexpectedly");
+                }
+                // removes the new line printed before the marker
+                text.setLength(Math.max(text.length() - 1, 0));
+                int exitCode = Integer.parseInt(
+                        line.substring(marker.length()).trim());
+                results.add(new Result(exitCode, text.toString()));
+            }
+            return results;
+        } catch (IOException e) {
+            // the responses can't be matched to the commands anymore
+            failed = true;
+            process.destroy();
+            throw e;
+        }
+    }
+
+    /**
+     * @param argument
+     * @return the given argument quoted for the shell
+     */
+    public static String quote(String argument) {
+        return "'" + argument.replace("'", "'\\''") + "'";
+    }
+
+    /**
+     * executes the given commands in the shell of the slave, killing every
+     * command which runs longer than the default timeout
+     *
+     * @param launcher the launcher of the slave
+     * @param directory the directory in which the commands are executed
+     * @param commands the commands to execute
+     * @return the result of every command (in the same order)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<Result> execute(Launcher launcher, FilePath directory,
+            List<String> commands) throws IOException, InterruptedException {
+        return execute(launcher, directory, commands, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * executes the given commands in the shell of the slave, killing every
+     * command which runs longer than the timeout
+     *
+     * @param launcher the launcher of the slave
+     * @param directory the directory in which the commands are executed
+     * @param commands the commands to execute
+     * @param timeout in seconds (zero for the default timeout)
+     * @return the result of every command (in the same order)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static List<Result> execute(Launcher launcher, FilePath directory,
+            List<String> commands, int timeout)
+            throws IOException, InterruptedException {
+        return launcher.getChannel().call(
+                new Commands(directory.getRemote(), commands, timeout));
+    }
+
+    /**
+     * executes the given command in the shell of the slave, killing it if
+     * it runs longer than the default timeout
+     *
+     * @param launcher the launcher of the slave
+     * @param directory the directory in which the command is executed
+     * @param command the command to execute
+     * @return the result of the command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Result execute(Launcher launcher, FilePath directory,
+            String command) throws IOException, InterruptedException {
+        return execute(launcher, directory,
+                Collections.singletonList(command), DEFAULT_TIMEOUT).get(0);
+    }
+
+    /**
+     * executes the given command in the shell of the slave, killing it if
+     * it runs longer than the timeout
+     *
+     * @param launcher the launcher of the slave
+     * @param directory the directory in which the command is executed
+     * @param command the command to execute
+     * @param timeout in seconds (zero for the default timeout)
+     * @return the result of the command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public static Result execute(Launcher launcher, FilePath directory,
+            String command, int timeout)
+            throws IOException, InterruptedException {
+        return execute(launcher, directory,
+                Collections.singletonList(command), timeout).get(0);
+    }
+
+    /**
+     * executes the given commands in a shell of this JVM
+     *
+     * @param directory the directory in which the commands are executed
+     * @param commands the commands to execute
+     * @param timeout in seconds (zero for the default timeout)
+     * @return the result of every command (in the same order)
+     * @throws IOException
+     */
+    static List<Result> execute(String directory, List<String> commands,
+            int timeout) throws IOException {
+        RemoteShell shell;
+        try {
+            shell = acquire();
+        } catch (InterruptedException e) {
+            throw new InterruptedIOException("Interrupted while waiting for "
+                    + "a command shell");
+        }
+        try {
+            return shell.run(directory, commands,
+                    timeout > 0 ? timeout : DEFAULT_TIMEOUT);
+        } finally {
+            release(shell);
+        }
+    }
+
+    /**
+     * the exit code and the output (both stdout and stderr) of a command
+     */
+    public static class Result implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int exitCode;
+        private final String output;
+
+        public Result(int exitCode, String output) {
+            this.exitCode = exitCode;
+            this.output = output;
+        }
+
+        public int getExitCode() {
+            return exitCode;
+        }
+
+        public String getOutput() {
+            return output;
+        }
+
+        public boolean isSuccessful() {
+            return exitCode == 0;
+        }
+
+        public boolean isTimedOut() {
+            return exitCode == TIMEOUT_EXIT_CODE;
+        }
+    }
+
+    private static class Commands
+            extends MasterToSlaveCallable<List<Result>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String directory;
+        private final List<String> commands;
+        private final int timeout;
+
+        public Commands(String directory, List<String> commands,
+                int timeout) {
+            this.directory = directory;
+            this.commands = new ArrayList<String>(commands);
+            this.timeout = timeout;
+        }
+
+        @Override
+        public List<Result> call() throws IOException {
+            return execute(directory, commands, timeout);
+        }
+    }
+}
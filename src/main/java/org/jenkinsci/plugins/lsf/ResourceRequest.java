@@ -0,0 +1,177 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.AbstractBuild;
+import hudson.model.AbstractProject;
+
+/**
+ * The resources requested for an LSF job. Memory is in megabytes, the run
+ * limit is in minutes and zero means that the value isn't requested.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ResourceRequest {
+
+    // how many successful builds are inspected at most for their usage
+    // (builds without a recorded usage don't end the search otherwise)
+    private static final int MAX_SEARCHED_BUILDS = 100;
+
+    private final int processors;
+    private final int memoryLimit;
+    private final int memoryReservation;
+    private final int runLimit;
+
+    public ResourceRequest(int processors, int memoryLimit,
+            int memoryReservation, int runLimit) {
+        this.processors = processors;
+        this.memoryLimit = memoryLimit;
+        this.memoryReservation = memoryReservation;
+        this.runLimit = runLimit;
+    }
+
+    /**
+     * derives the memory and the run limit from the maximum usage of the
+     * last successful builds of the project (only the last
+     * MAX_SEARCHED_BUILDS successful builds are inspected)
+     *
+     * @param project
+     * @param builds how many last successful builds are used
+     * @param headroom how much (in percent) is added to the recorded usage
+     * @return the derived request, or this request if there is no recorded
+     * usage
+     */
+    public ResourceRequest fromHistory(AbstractProject<?, ?> project,
+            int builds, int headroom) {
+        double maxMemory = -1;
+        long maxRunTime = -1;
+        int count = 0;
+        int searched = 0;
+        for (AbstractBuild<?, ?> build = project.getLastSuccessfulBuild();
+                build != null && count < builds
+                && searched < MAX_SEARCHED_BUILDS;
+                build = build.getPreviousSuccessfulBuild()) {
+            searched++;
+            boolean hasUsage = false;
+            for (LSFJobUsageAction usage
+                    : build.getActions(LSFJobUsageAction.class)) {
+                maxMemory = Math.max(maxMemory, usage.getMaxMemory());
+                maxRunTime = Math.max(maxRunTime, usage.getRunTime());
+                hasUsage = true;
+            }
+            if (hasUsage) {
+                count++;
+            }
+        }
+        return fromUsage(maxMemory, maxRunTime, headroom);
+    }
+
+    /**
+     * @param maxMemory the maximum memory used by a job (in megabytes, not
+     * positive if unknown)
+     * @param maxRunTime the maximum run time of a job (in seconds, not
+     * positive if unknown)
+     * @param headroom how much (in percent) is added to the usage
+     * @return the request with the memory and the run limit derived from the
+     * usage, the memory reservation is per processor and so is the memory of
+     * the job divided among its processors
+     */
+    ResourceRequest fromUsage(double maxMemory, long maxRunTime,
+            int headroom) {
+        double factor = 1 + headroom / 100.0;
+        int memory = memoryLimit;
+        int reservation = memoryReservation;
+        if (maxMemory > 0) {
+            memory = (int) Math.ceil(maxMemory * factor);
+            reservation = (int) Math.ceil(
+                    (double) memory / Math.max(processors, 1));
+        }
+        int limit = runLimit;
+        if (maxRunTime > 0) {
+            limit = (int) Math.ceil(maxRunTime * factor / 60);
+        }
+        return new ResourceRequest(processors, memory, reservation, limit);
+    }
+
+    /**
+     * @param jobs how many jobs run in a packed job with this request
+     * @param parallel whether the jobs run at the same time
+     * @return the request of the packed job, the run limit adds up when the
+     * jobs run one after another, the processors when they run in parallel
+     * (the memory reservation is per processor, so the reserved memory adds
+     * up too, while the memory limit stays the limit of each process)
+     */
+    public ResourceRequest forPack(int jobs, boolean parallel) {
+        if (parallel) {
+            return new ResourceRequest(Math.max(processors, 1) * jobs,
+                    memoryLimit, memoryReservation, runLimit);
+        }
+        return new ResourceRequest(processors, memoryLimit,
+                memoryReservation, runLimit * jobs);
+    }
+
+    public int getProcessors() {
+        return processors;
+    }
+
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public int getMemoryReservation() {
+        return memoryReservation;
+    }
+
+    public int getRunLimit() {
+        return runLimit;
+    }
+
+    /**
+     * @return the bsub options for requesting the resources (ends with a
+     * space if not empty)
+     */
+    public String toBsubOptions() {
+        StringBuilder options = new StringBuilder();
+        if (processors > 0) {
+            options.append("-n ").append(processors).append(' ');
+        }
+        if (memoryLimit > 0) {
+            options.append("-M ").append(memoryLimit).append("MB ");
+        }
+        if (memoryReservation > 0) {
+            options.append("-R \"rusage[mem=").append(memoryReservation)
+                    .append("MB]\" ");
+        }
+        if (runLimit > 0) {
+            options.append("-W ").append(runLimit).append(' ');
+        }
+        return options.toString();
+    }
+
+    @Override
+    public String toString() {
+        String options = toBsubOptions().trim();
+        return options.isEmpty() ? "no resource requests" : options;
+    }
+}
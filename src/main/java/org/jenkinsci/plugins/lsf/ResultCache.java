@@ -0,0 +1,281 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Stores the results (output and downloaded files) of successful LSF jobs,
+ * keyed by a hash of everything the job depends on, so that identical jobs
+ * don't need to be submitted again. The least recently used results are
+ * removed when the cache grows over its size limit.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ResultCache {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(ResultCache.class.getName());
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    // names of the files in a cache entry
+    private static final String OUTPUT_FILE = "output.log.gz";
+    private static final String JOB_ID_FILE = "jobId";
+    private static final String FILES_DIRECTORY = "files";
+
+    private final File root;
+    // the entries and their sizes in access order (least recent first)
+    private Map<String, Long> entries;
+    // how many restores are reading each entry (these aren't removed)
+    private final Map<String, Integer> pins = new HashMap<String, Integer>();
+
+    public ResultCache(File root) {
+        this.root = root;
+    }
+
+    /**
+     * @param script the job script
+     * @param inputFiles the files sent with the job
+     * @param options the options the job is submitted with
+     * @return the cache key of a job
+     * @throws IOException
+     */
+    public static String computeKey(String script, List<File> inputFiles,
+            String options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e);
+        }
+        update(digest, script);
+        update(digest, options);
+        byte[] buffer = new byte[8192];
+        for (File file : inputFiles) {
+            update(digest, file.getName());
+            InputStream in = new FileInputStream(file);
+            try {
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, n);
+                }
+            } finally {
+                in.close();
+            }
+        }
+        StringBuilder key = new StringBuilder();
+        for (byte b : digest.digest()) {
+            key.append(String.format("%02x", b));
+        }
+        return key.toString();
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        byte[] bytes = value.getBytes(UTF_8);
+        // the length keeps the boundaries between the values unambiguous
+        digest.update(Integer.toString(bytes.length).getBytes(UTF_8));
+        digest.update((byte) ':');
+        digest.update(bytes);
+    }
+
+    /**
+     * the returned entry isn't removed until it is released
+     *
+     * @param key
+     * @return the cached result of the given key or null if there is none
+     */
+    public synchronized Entry lookup(String key) {
+        Long size = getEntries().get(key);
+        File directory = new File(root, key);
+        if (size == null || !directory.isDirectory()) {
+            getEntries().remove(key);
+            return null;
+        }
+        // the modification time keeps the access order across restarts
+        directory.setLastModified(System.currentTimeMillis());
+        Integer count = pins.get(key);
+        pins.put(key, count == null ? 1 : count + 1);
+        return new Entry(key, directory);
+    }
+
+    private synchronized void release(String key) {
+        Integer count = pins.get(key);
+        if (count == null || count <= 1) {
+            pins.remove(key);
+        } else {
+            pins.put(key, count - 1);
+        }
+    }
+
+    /**
+     * stores the result of a successful job
+     *
+     * @param key the cache key of the job
+     * @param jobId the identifier of the job
+     * @param outputLog the compressed output log of the job
+     * @param files the downloaded files
+     * @param maxSize the size limit of the cache in bytes
+     * @throws IOException
+     */
+    public void store(String key, String jobId, File outputLog,
+            List<File> files, long maxSize) throws IOException {
+        // the files are copied without holding the lock, the directory of
+        // each job is its own
+        File temporary = new File(root, key + "." + jobId + ".tmp");
+        try {
+            FileUtils.deleteDirectory(temporary);
+            File filesDirectory = new File(temporary, FILES_DIRECTORY);
+            FileUtils.forceMkdir(filesDirectory);
+            FileUtils.writeStringToFile(new File(temporary, JOB_ID_FILE),
+                    jobId, "UTF-8");
+            FileUtils.copyFile(outputLog, new File(temporary, OUTPUT_FILE));
+            for (File file : files) {
+                FileUtils.copyFile(file,
+                        new File(filesDirectory, file.getName()));
+            }
+            long size = FileUtils.sizeOfDirectory(temporary);
+            synchronized (this) {
+                // an entry being restored is kept, its result is the same
+                if (pins.containsKey(key)) {
+                    return;
+                }
+                File directory = new File(root, key);
+                FileUtils.deleteDirectory(directory);
+                if (!temporary.renameTo(directory)) {
+                    throw new IOException("Failed to store the result in "
+                            + directory);
+                }
+                getEntries().put(key, size);
+                evict(maxSize);
+            }
+        } finally {
+            FileUtils.deleteQuietly(temporary);
+        }
+    }
+
+    /**
+     * removes the least recently used entries until the cache fits into the
+     * given size
+     */
+    private void evict(long maxSize) {
+        long size = 0;
+        for (long entrySize : getEntries().values()) {
+            size += entrySize;
+        }
+        Iterator<Map.Entry<String, Long>> iterator
+                = getEntries().entrySet().iterator();
+        while (size > maxSize && iterator.hasNext()) {
+            Map.Entry<String, Long> entry = iterator.next();
+            if (pins.containsKey(entry.getKey())) {
+                continue;
+            }
+            try {
+                FileUtils.deleteDirectory(new File(root, entry.getKey()));
+            } catch (IOException e) {
+                LOGGER.log(Level.WARNING, "Failed to remove cached result "
+                        + entry.getKey(), e);
+            }
+            size -= entry.getValue();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return the entries in access order, read from the cache directory on
+     * the first use
+     */
+    private Map<String, Long> getEntries() {
+        if (entries == null) {
+            entries = new LinkedHashMap<String, Long>(16, 0.75f, true);
+            File[] directories = root.listFiles();
+            if (directories != null) {
+                Arrays.sort(directories, new Comparator<File>() {
+                    @Override
+                    public int compare(File a, File b) {
+                        return Long.valueOf(a.lastModified())
+                                .compareTo(b.lastModified());
+                    }
+                });
+                for (File directory : directories) {
+                    if (directory.isDirectory()
+                            && !directory.getName().endsWith(".tmp")) {
+                        entries.put(directory.getName(),
+                                FileUtils.sizeOfDirectory(directory));
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * a cached result
+     */
+    public class Entry {
+
+        private final String key;
+        private final File directory;
+
+        private Entry(String key, File directory) {
+            this.key = key;
+            this.directory = directory;
+        }
+
+        /**
+         * allows the entry to be removed again
+         */
+        public void release() {
+            ResultCache.this.release(key);
+        }
+
+        public String getJobId() throws IOException {
+            return FileUtils.readFileToString(
+                    new File(directory, JOB_ID_FILE), "UTF-8").trim();
+        }
+
+        public File getOutputLog() {
+            return new File(directory, OUTPUT_FILE);
+        }
+
+        public File[] getFiles() {
+            File[] files = new File(directory, FILES_DIRECTORY).listFiles();
+            return files == null ? new File[0] : files;
+        }
+    }
+}
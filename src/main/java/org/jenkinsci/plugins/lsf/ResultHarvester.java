@@ -0,0 +1,182 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.FilePath;
+import hudson.model.BuildListener;
+import hudson.remoting.VirtualChannel;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import jenkins.MasterToSlaveFileCallable;
+
+/**
+ * Downloads the result files of a running job as soon as they are complete,
+ * so that most of them are already in the master when the job finishes. A
+ * file is complete when its size and modification time haven't changed
+ * since the previous check.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class ResultHarvester {
+
+    // the directory (in the slave) where the job writes its results
+    private final FilePath directory;
+    private final String includes;
+    // the directory (in the master) where the files are downloaded
+    private final File destination;
+    // the size and modification time of the files at the previous check
+    // and of the files which have been downloaded
+    private Map<String, String> previous = new HashMap<String, String>();
+    private final Map<String, String> harvested
+            = new HashMap<String, String>();
+
+    /**
+     * @param directory the directory where the job writes its results
+     * @param includes comma separated patterns of the result files relative
+     * to the directory
+     * @param destination the directory where the files are downloaded
+     * (without their paths)
+     */
+    public ResultHarvester(FilePath directory, String includes,
+            File destination) {
+        this.directory = directory;
+        this.includes = includes;
+        this.destination = destination;
+    }
+
+    /**
+     * downloads the result files which have become complete since the
+     * previous check
+     *
+     * @param listener
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public void harvest(BuildListener listener)
+            throws IOException, InterruptedException {
+        Map<String, String> current = directory.act(new ScanFiles(includes));
+        for (Map.Entry<String, String> file : current.entrySet()) {
+            String state = file.getValue();
+            if (state.equals(previous.get(file.getKey()))
+                    && !state.equals(harvested.get(file.getKey()))) {
+                String name = new File(file.getKey()).getName();
+                destination.mkdirs();
+                directory.child(file.getKey()).copyTo(
+                        new FilePath(new File(destination, name)));
+                harvested.put(file.getKey(), state);
+                listener.getLogger().println("Downloaded the finished "
+                        + "result file " + file.getKey());
+            }
+        }
+        previous = current;
+    }
+
+    /**
+     * @return the downloaded files which haven't changed since they were
+     * downloaded (relative to the directory)
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public List<String> getUnchangedFiles()
+            throws IOException, InterruptedException {
+        List<String> unchanged = new ArrayList<String>();
+        if (harvested.isEmpty()) {
+            return unchanged;
+        }
+        Map<String, String> current = directory.act(new ScanFiles(includes));
+        for (Map.Entry<String, String> file : harvested.entrySet()) {
+            if (file.getValue().equals(current.get(file.getKey()))) {
+                unchanged.add(file.getKey());
+            }
+        }
+        return unchanged;
+    }
+
+    /**
+     * finds the files matching the patterns and their sizes and modification
+     * times
+     */
+    private static class ScanFiles
+            extends MasterToSlaveFileCallable<Map<String, String>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final String includes;
+
+        private ScanFiles(String includes) {
+            this.includes = includes;
+        }
+
+        @Override
+        public Map<String, String> invoke(File file, VirtualChannel channel)
+                throws IOException {
+            final Map<String, String> files = new HashMap<String, String>();
+            final Path root = file.toPath();
+            if (!Files.isDirectory(root)) {
+                return files;
+            }
+            final List<PathMatcher> matchers = new ArrayList<PathMatcher>();
+            for (String include : includes.split(",")) {
+                if (!include.trim().isEmpty()) {
+                    matchers.add(FileSystems.getDefault()
+                            .getPathMatcher("glob:" + include.trim()));
+                }
+            }
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path path,
+                        BasicFileAttributes attributes) {
+                    Path relative = root.relativize(path);
+                    for (PathMatcher matcher : matchers) {
+                        if (matcher.matches(relative)) {
+                            files.put(relative.toString(), attributes.size()
+                                    + ":" + attributes.lastModifiedTime()
+                                    .toMillis());
+                            break;
+                        }
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path,
+                        IOException e) {
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            return files;
+        }
+    }
+}
@@ -0,0 +1,172 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.AbstractBuild;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+
+/**
+ * Receives the output of a submit command which stays attached to its job
+ * (bsub -I or -K). The lines of the submit command itself are printed to
+ * the console and the rest of the output (the output of an interactive
+ * job) is written to the job's output log as it arrives.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class StreamedJobOutput extends OutputStream {
+
+    // the messages of bsub about the job's dispatch and finish (any other
+    // line, even one in angle brackets, is the job's own output)
+    private static final Pattern BSUB_MESSAGE = Pattern.compile(
+            "<<(Waiting for dispatch|Starting on|Job is finished).*>>");
+
+    private final AbstractBuild<?, ?> build;
+    private final PrintStream console;
+    private final int headLines;
+    private final int tailLines;
+
+    private final ByteArrayOutputStream line = new ByteArrayOutputStream();
+    private String jobId;
+    private LSFJobOutputAction outputAction;
+    private JobOutputLog outputLog;
+    private boolean closed = false;
+
+    /**
+     * @param build the build which runs the job
+     * @param console the console of the build
+     * @param headLines how many first lines of the job output are printed
+     * to the console
+     * @param tailLines how many last lines of the job output are printed to
+     * the console
+     */
+    public StreamedJobOutput(AbstractBuild<?, ?> build, PrintStream console,
+            int headLines, int tailLines) {
+        this.build = build;
+        this.console = console;
+        this.headLines = headLines;
+        this.tailLines = tailLines;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[]{(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] data, int offset, int length)
+            throws IOException {
+        for (int i = offset; i < offset + length; i++) {
+            line.write(data[i]);
+            if (data[i] == '\n') {
+                endLine();
+            }
+        }
+    }
+
+    private void endLine() throws IOException {
+        byte[] data = line.toByteArray();
+        line.reset();
+        String text = new String(data, "UTF-8").trim();
+        if (jobId == null) {
+            // bsub prints the job id before anything else
+            console.println(text);
+            jobId = LSF.parseJobId(text);
+            if (jobId != null) {
+                outputAction = new LSFJobOutputAction(build, jobId);
+                build.addAction(outputAction);
+                outputLog = new JobOutputLog(outputAction, headLines,
+                        tailLines);
+                notifyAll();
+            }
+        } else if (BSUB_MESSAGE.matcher(text).matches()) {
+            console.println(text);
+        } else {
+            // the build closes the log if the output doesn't end in time,
+            // the lines arriving after that are dropped
+            synchronized (outputLog) {
+                if (outputLog.isClosed()) {
+                    return;
+                }
+                outputLog.write(data);
+                console.print(outputLog.takeConsoleText());
+            }
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (line.size() > 0) {
+            endLine();
+        }
+        closed = true;
+        notifyAll();
+    }
+
+    /**
+     * waits until the job id has been received
+     *
+     * @param submission the running submit command
+     * @return the job id or null if the job was not submitted
+     * @throws InterruptedException
+     */
+    public synchronized String waitForJobId(Future<?> submission)
+            throws InterruptedException {
+        while (jobId == null && !closed && !submission.isDone()) {
+            wait(1000);
+        }
+        return jobId;
+    }
+
+    /**
+     * waits until the whole output has been received after the submit
+     * command has finished
+     *
+     * @param timeoutMillis the longest time to wait
+     * @throws InterruptedException
+     */
+    public synchronized void waitForClose(long timeoutMillis)
+            throws InterruptedException {
+        long end = System.currentTimeMillis() + timeoutMillis;
+        while (!closed && System.currentTimeMillis() < end) {
+            wait(Math.max(1, end - System.currentTimeMillis()));
+        }
+    }
+
+    public String getJobId() {
+        return jobId;
+    }
+
+    public LSFJobOutputAction getOutputAction() {
+        return outputAction;
+    }
+
+    public JobOutputLog getOutputLog() {
+        return outputLog;
+    }
+}
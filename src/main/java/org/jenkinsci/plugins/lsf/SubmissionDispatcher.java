@@ -0,0 +1,492 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import hudson.model.Computer;
+import hudson.remoting.Future;
+import hudson.remoting.VirtualChannel;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.regex.Pattern;
+import jenkins.security.MasterToSlaveCallable;
+import jenkins.util.Timer;
+
+/**
+ * Submits the jobs of all the builds that use the same LSF cluster, limiting
+ * how many submissions run at once and how many bsub commands are run per
+ * second. Pending submissions for the same slave are sent together in one
+ * remote call by a dispatcher thread and the submissions rejected because
+ * mbatchd or LIM is temporarily unavailable are retried with backoff.
+ *
+ * @author Laisvydas Skurevicius
+ */
+public class SubmissionDispatcher {
+
+    private static final Logger LOGGER
+            = Logger.getLogger(SubmissionDispatcher.class.getName());
+
+    public static final int DEFAULT_MAX_CONCURRENT = 4;
+    public static final int DEFAULT_MAX_PER_SECOND = 10;
+    // how many submissions are sent in one remote call at most
+    private static final int MAX_BATCH_SIZE = 20;
+    // how many times a rejected submission is retried
+    private static final int MAX_RETRIES = 5;
+    // the errors of bsub which go away once mbatchd or LIM is reachable
+    // again, any other rejection (a bad queue, option or limit) is final
+    private static final Pattern TRANSIENT_ERROR = Pattern.compile(
+            "batch system daemon not responding|LSF daemon \\(LIM\\) not "
+            + "responding|LIM is down|Cannot connect to LSF|[Tt]imed? ?out"
+            + "|Failed in an LSF library call|still trying");
+    private static final long INITIAL_BACKOFF_MILLIS = 2000;
+    private static final long MAX_BACKOFF_MILLIS = 60000;
+
+    // the dispatchers of the clusters (by the cluster name)
+    private static final Map<String, SubmissionDispatcher> DISPATCHERS
+            = new HashMap<String, SubmissionDispatcher>();
+
+    private final int maxConcurrent;
+    private final int maxPerSecond;
+    // the breaker of the cluster, timed out submissions count as failures
+    private final CircuitBreaker breaker;
+    // the permits for the remote calls running at once
+    private final Semaphore permits;
+    // the time when the next bsub command can be run
+    private long nextSubmissionTime;
+    // the pending submissions by the slave channel
+    private final Map<VirtualChannel, LinkedList<Pending>> queues
+            = new HashMap<VirtualChannel, LinkedList<Pending>>();
+    // the slaves whose submissions are being sent by a dispatcher thread
+    private final Set<VirtualChannel> draining
+            = new HashSet<VirtualChannel>();
+
+    private SubmissionDispatcher(String cluster, int maxConcurrent,
+            int maxPerSecond) {
+        this.breaker = CircuitBreaker.get(cluster);
+        this.maxConcurrent = Math.max(1, maxConcurrent);
+        this.maxPerSecond = Math.max(1, maxPerSecond);
+        this.permits = new Semaphore(this.maxConcurrent);
+    }
+
+    /**
+     * @param cluster the name of the cluster
+     * @param maxConcurrent how many remote submission calls can run at once
+     * @param maxPerSecond how many bsub commands can be run per second
+     * @return the dispatcher of the cluster (a new one if the limits have
+     * changed, the submissions pending in the old one are still completed)
+     */
+    public static synchronized SubmissionDispatcher get(String cluster,
+            int maxConcurrent, int maxPerSecond) {
+        SubmissionDispatcher dispatcher = DISPATCHERS.get(cluster);
+        if (dispatcher == null || dispatcher.maxConcurrent != maxConcurrent
+                || dispatcher.maxPerSecond != maxPerSecond) {
+            dispatcher = new SubmissionDispatcher(cluster, maxConcurrent,
+                    maxPerSecond);
+            DISPATCHERS.put(cluster, dispatcher);
+        }
+        return dispatcher;
+    }
+
+    /**
+     * submits the job, waiting until the limits of the cluster allow it
+     *
+     * @param channel the channel of the slave the job is submitted from
+     * @param submission
+     * @param logger the console of the build
+     * @return the output of the (last) submit command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public String submit(VirtualChannel channel, JobSubmission submission,
+            PrintStream logger) throws IOException, InterruptedException {
+        Pending pending = new Pending(submission, logger);
+        synchronized (this) {
+            getQueue(channel).add(pending);
+        }
+        drainLater(channel, 0);
+        try {
+            pending.await();
+        } finally {
+            // the submission is not sent if the build is aborted while
+            // waiting (an interrupted submission that has already been sent
+            // leaves a job behind, which is killed by LSFJobReaper)
+            remove(channel, pending);
+        }
+        return pending.getOutput();
+    }
+
+    /**
+     * starts a submit command which stays attached to its job (bsub -I or
+     * -K) once the limits of the cluster allow it, the running command
+     * doesn't count against the concurrent submissions
+     *
+     * @param channel the channel of the slave the job is submitted from
+     * @param submission
+     * @return the running submit command
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    public Future<String> submitAttached(VirtualChannel channel,
+            JobSubmission submission)
+            throws IOException, InterruptedException {
+        permits.acquire();
+        try {
+            reserve(1);
+            return channel.callAsync(submission);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private LinkedList<Pending> getQueue(VirtualChannel channel) {
+        LinkedList<Pending> queue = queues.get(channel);
+        if (queue == null) {
+            queue = new LinkedList<Pending>();
+            queues.put(channel, queue);
+        }
+        return queue;
+    }
+
+    /**
+     * starts a dispatcher thread for the slave after the delay, unless one
+     * is already sending its submissions
+     *
+     * @param channel
+     * @param delay in milliseconds
+     */
+    private void drainLater(final VirtualChannel channel, long delay) {
+        Timer.get().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SubmissionDispatcher.this) {
+                    if (!draining.add(channel)) {
+                        return;
+                    }
+                }
+                Computer.threadPoolForRemoting.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain(channel);
+                    }
+                });
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * sends the pending submissions of the slave in batches until none can
+     * be sent now (the dispatcher thread doesn't belong to any build, so an
+     * aborted build can't interrupt the submissions of other builds)
+     *
+     * @param channel
+     */
+    private void drain(VirtualChannel channel) {
+        try {
+            while (true) {
+                permits.acquire();
+                try {
+                    List<Pending> batch = take(channel);
+                    if (batch.isEmpty()) {
+                        break;
+                    }
+                    dispatch(channel, batch);
+                } finally {
+                    permits.release();
+                }
+            }
+        } catch (InterruptedException e) {
+            LOGGER.log(Level.FINE, "Interrupted while dispatching LSF job "
+                    + "submissions", e);
+        } finally {
+            long retryTime;
+            synchronized (this) {
+                draining.remove(channel);
+                retryTime = getNextRetryTime(channel);
+            }
+            // the submissions queued meanwhile or waiting for a retry
+            if (retryTime >= 0) {
+                drainLater(channel,
+                        Math.max(0, retryTime - System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * @param channel
+     * @return the earliest time when a pending submission of the slave can
+     * be sent, -1 if there are none
+     */
+    private synchronized long getNextRetryTime(VirtualChannel channel) {
+        long retryTime = -1;
+        LinkedList<Pending> queue = queues.get(channel);
+        if (queue != null) {
+            for (Pending pending : queue) {
+                if (retryTime < 0 || pending.retryTime < retryTime) {
+                    retryTime = pending.retryTime;
+                }
+            }
+        }
+        return retryTime;
+    }
+
+    /**
+     * @param channel
+     * @return the pending submissions of the slave that can be sent now
+     */
+    private synchronized List<Pending> take(VirtualChannel channel) {
+        List<Pending> batch = new ArrayList<Pending>();
+        LinkedList<Pending> queue = queues.get(channel);
+        if (queue == null) {
+            return batch;
+        }
+        long now = System.currentTimeMillis();
+        Iterator<Pending> iterator = queue.iterator();
+        while (iterator.hasNext() && batch.size() < MAX_BATCH_SIZE) {
+            Pending pending = iterator.next();
+            if (pending.retryTime <= now) {
+                iterator.remove();
+                batch.add(pending);
+            }
+        }
+        if (queue.isEmpty()) {
+            queues.remove(channel);
+        }
+        return batch;
+    }
+
+    private synchronized void remove(VirtualChannel channel,
+            Pending pending) {
+        LinkedList<Pending> queue = queues.get(channel);
+        if (queue != null) {
+            queue.remove(pending);
+            if (queue.isEmpty()) {
+                queues.remove(channel);
+            }
+        }
+    }
+
+    private synchronized void requeue(VirtualChannel channel,
+            Pending pending) {
+        getQueue(channel).addFirst(pending);
+    }
+
+    /**
+     * waits until the rate limit allows running the given number of bsub
+     * commands
+     *
+     * @param count
+     * @throws InterruptedException
+     */
+    private void reserve(int count) throws InterruptedException {
+        long startTime;
+        synchronized (this) {
+            long now = System.currentTimeMillis();
+            startTime = Math.max(now, nextSubmissionTime);
+            nextSubmissionTime = startTime + count * 1000L / maxPerSecond;
+        }
+        long delay = startTime - System.currentTimeMillis();
+        if (delay > 0) {
+            Thread.sleep(delay);
+        }
+    }
+
+    /**
+     * sends the submissions to the slave in one remote call, the rejected
+     * ones are queued again
+     *
+     * @param channel
+     * @param batch
+     * @throws InterruptedException
+     */
+    private void dispatch(VirtualChannel channel, List<Pending> batch)
+            throws InterruptedException {
+        List<JobSubmission> submissions = new ArrayList<JobSubmission>();
+        for (Pending pending : batch) {
+            submissions.add(pending.submission);
+        }
+        try {
+            reserve(batch.size());
+        } catch (InterruptedException e) {
+            // nothing has been sent yet
+            for (int i = batch.size() - 1; i >= 0; i--) {
+                requeue(channel, batch.get(i));
+            }
+            throw e;
+        }
+        List<Outcome> outcomes;
+        try {
+            outcomes = channel.call(new SubmissionBatch(submissions));
+        } catch (IOException e) {
+            for (Pending pending : batch) {
+                pending.fail(e);
+            }
+            return;
+        } catch (InterruptedException e) {
+            for (Pending pending : batch) {
+                pending.fail(new InterruptedIOException(
+                        "Interrupted while submitting the job"));
+            }
+            throw e;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            Pending pending = batch.get(i);
+            Outcome outcome = outcomes.get(i);
+            if (outcome.error != null) {
+                if (outcome.error instanceof JobSubmission.TimeoutException) {
+                    breaker.recordFailure();
+                }
+                pending.fail(outcome.error);
+                continue;
+            }
+            // the input files have been written by the first attempt
+            pending.submission.filesStaged();
+            if (LSF.parseJobId(outcome.output) != null) {
+                breaker.recordSuccess();
+            }
+            if (LSF.parseJobId(outcome.output) != null
+                    || !isTransientError(outcome.output)
+                    || pending.retries >= MAX_RETRIES) {
+                pending.complete(outcome.output);
+            } else {
+                long backoff = Math.min(MAX_BACKOFF_MILLIS,
+                        INITIAL_BACKOFF_MILLIS << pending.retries);
+                pending.retries++;
+                pending.retryTime = System.currentTimeMillis() + backoff;
+                pending.logger.println(outcome.output.trim());
+                pending.logger.println("Job submission rejected, retrying in "
+                        + backoff / 1000 + " seconds (" + pending.retries
+                        + "/" + MAX_RETRIES + ")");
+                requeue(channel, pending);
+            }
+        }
+    }
+
+    /**
+     * @param output the output of a submit command without a job id
+     * @return whether the submission was rejected only because the batch
+     * system was temporarily unavailable
+     */
+    static boolean isTransientError(String output) {
+        return output != null && TRANSIENT_ERROR.matcher(output).find();
+    }
+
+    /**
+     * a submission waiting to be sent
+     */
+    private static class Pending {
+
+        private final JobSubmission submission;
+        private final PrintStream logger;
+        private int retries;
+        // the time when the submission can be sent
+        private long retryTime;
+        private boolean done;
+        private String output;
+        private IOException error;
+
+        private Pending(JobSubmission submission, PrintStream logger) {
+            this.submission = submission;
+            this.logger = logger;
+        }
+
+        private synchronized void await() throws InterruptedException {
+            while (!done) {
+                wait();
+            }
+        }
+
+        private synchronized void complete(String output) {
+            this.output = output;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized void fail(IOException error) {
+            this.error = error;
+            done = true;
+            notifyAll();
+        }
+
+        private synchronized String getOutput() throws IOException {
+            if (error != null) {
+                throw error;
+            }
+            return output;
+        }
+    }
+
+    /**
+     * the output of a submission or the error that prevented it
+     */
+    private static class Outcome implements Serializable {
+
+        private static final long serialVersionUID = 1L;
+
+        private String output;
+        private IOException error;
+    }
+
+    /**
+     * runs several submissions in one remote call
+     */
+    private static class SubmissionBatch
+            extends MasterToSlaveCallable<List<Outcome>, IOException> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final List<JobSubmission> submissions;
+
+        private SubmissionBatch(List<JobSubmission> submissions) {
+            this.submissions = submissions;
+        }
+
+        @Override
+        public List<Outcome> call() throws IOException {
+            List<Outcome> outcomes = new ArrayList<Outcome>();
+            for (JobSubmission submission : submissions) {
+                Outcome outcome = new Outcome();
+                try {
+                    outcome.output = submission.call();
+                } catch (IOException e) {
+                    outcome.error = e;
+                }
+                outcomes.add(outcome);
+            }
+            return outcomes;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class JobPackerTest {
+
+    @Test
+    public void writesTheOutputAndExitCodeOfEveryBuild() throws Exception {
+        runsThePack(false);
+    }
+
+    @Test
+    public void runsTheJobsInParallel() throws Exception {
+        runsThePack(true);
+    }
+
+    @Test
+    public void namesTheFilesAfterTheBuild() {
+        assertEquals("jobPackOutput-folder_job_12",
+                JobPacker.getOutputFile("folder/job#12"));
+        assertEquals("jobPackExitCode-folder_job_12",
+                JobPacker.getExitCodeFile("folder/job#12"));
+    }
+
+    private void runsThePack(boolean parallel) throws Exception {
+        File directory = createDirectory();
+        try {
+            List<JobSubmission> submissions = new ArrayList<JobSubmission>();
+            // the builds share a workspace
+            submissions.add(new JobSubmission(directory.getPath(),
+                    "echo one\nexit 3"));
+            submissions.add(new JobSubmission(directory.getPath(),
+                    "cat <<'EOF'\ntwo\nEOF\n"));
+            List<String> runIds = Arrays.asList("job#1", "job#2");
+            Process process = new ProcessBuilder("/bin/bash", "-c",
+                    JobPacker.createPackScript(submissions, runIds,
+                            parallel)).redirectErrorStream(true).start();
+            assertEquals(0, process.waitFor());
+            assertEquals("one\n", read(new File(directory,
+                    JobPacker.getOutputFile("job#1"))));
+            assertEquals("3\n", read(new File(directory,
+                    JobPacker.getExitCodeFile("job#1"))));
+            assertEquals("two\n", read(new File(directory,
+                    JobPacker.getOutputFile("job#2"))));
+            assertEquals("0\n", read(new File(directory,
+                    JobPacker.getExitCodeFile("job#2"))));
+            assertFalse(new File(directory, JobPacker.getExitCodeFile(
+                    "job#1") + ".tmp").exists());
+        } finally {
+            for (File file : directory.listFiles()) {
+                file.delete();
+            }
+            directory.delete();
+        }
+    }
+
+    private static File createDirectory() throws IOException {
+        File directory = File.createTempFile("pack", "");
+        directory.delete();
+        directory.mkdir();
+        return directory;
+    }
+
+    private static String read(File file) throws IOException {
+        InputStream input = new FileInputStream(file);
+        try {
+            StringBuilder text = new StringBuilder();
+            byte[] buffer = new byte[1024];
+            int count;
+            while ((count = input.read(buffer)) > 0) {
+                text.append(new String(buffer, 0, count, "UTF-8"));
+            }
+            return text.toString();
+        } finally {
+            input.close();
+        }
+    }
+}
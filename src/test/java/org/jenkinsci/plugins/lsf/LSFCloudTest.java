@@ -0,0 +1,60 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class LSFCloudTest {
+
+    @Test
+    public void readsTheOldVersionScheme() {
+        assertEquals(8, LSFCloud.getJavaVersion("1.8"));
+        assertEquals(7, LSFCloud.getJavaVersion("1.7.0"));
+    }
+
+    @Test
+    public void readsTheNewVersionScheme() {
+        assertEquals(13, LSFCloud.getJavaVersion("13"));
+        assertEquals(17, LSFCloud.getJavaVersion("17.0.2"));
+    }
+
+    @Test
+    public void treatsUnknownVersionsAsZero() {
+        assertEquals(0, LSFCloud.getJavaVersion(null));
+        assertEquals(0, LSFCloud.getJavaVersion(""));
+        assertEquals(0, LSFCloud.getJavaVersion("ea"));
+    }
+
+    @Test
+    public void movesTheArchiveIntoPlaceAfterTheSlaveExits() {
+        assertEquals("java -jar slave.jar; test ! -f 'a.jsa.node' "
+                + "|| mv -f 'a.jsa.node' 'a.jsa'",
+                LSFCloud.moveArchive("java -jar slave.jar", "'a.jsa.node'",
+                        "'a.jsa'"));
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class LSFJobReaperTest {
+
+    private static final String PREFIX = "jenkins-0123abcd:";
+
+    @Test
+    public void escapesBracketsAndCommas() {
+        String name = LSFJobReaper.encode("folder/job[1],x%5B#2");
+        assertEquals("folder/job%5B1%5D%2Cx%255B#2", name);
+        assertEquals("folder/job[1],x%5B#2", LSFJobReaper.decode(name));
+    }
+
+    @Test
+    public void killsOnlyTheJobsOfGoneSlavesAndBuilds() {
+        Reaper reaper = new Reaper();
+        reaper.slaves.add("LSF-jenkins-1");
+        reaper.builds.add("job[1]#2");
+        reaper.builds.add("other#3");
+        String output = "1;RUN;" + PREFIX + "slave:LSF-jenkins-1\n"
+                + "2;RUN;" + PREFIX + "slave:LSF-jenkins-2\n"
+                + "3;PEND;" + PREFIX + "job%5B1%5D#2\n"
+                + "4;RUN;" + PREFIX + "job#1\n"
+                + "5;RUN;" + PREFIX + "pack:job#1,other#3\n"
+                + "6;RUN;" + PREFIX + "pack:job#1,job#4\n"
+                + "7;DONE;" + PREFIX + "job#1\n"
+                + "8;RUN;jenkins-ffffffff:job#1\n";
+        assertEquals(Arrays.asList("2", "4", "6"),
+                reaper.findOrphans(PREFIX, output));
+    }
+
+    private static class Reaper extends LSFJobReaper {
+
+        private final Set<String> slaves = new HashSet<String>();
+        private final Set<String> builds = new HashSet<String>();
+
+        @Override
+        protected boolean isSlaveRunning(String nodeName) {
+            return slaves.contains(nodeName);
+        }
+
+        @Override
+        protected boolean isBuilding(String runId) {
+            return builds.contains(runId);
+        }
+    }
+}
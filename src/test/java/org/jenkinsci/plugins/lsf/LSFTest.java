@@ -0,0 +1,114 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.Arrays;
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class LSFTest {
+
+    private static final String JOB_DETAILS = "\n"
+            + "Job <1234>, Job Name <build>, User <jenkins>, Project "
+            + "<default>, Status <DONE>\n"
+            + "                     , Queue <normal>, Command <./job.sh>\n"
+            + "Mon Oct 19 10:00:00: Submitted from host <master>, CWD <$HOME>"
+            + ";\n"
+            + "Mon Oct 19 10:00:05: Started 2 Task(s) on Host(s) <2*hostA>, "
+            + "<hostB>, Execution Home </home/jenkins>;\n"
+            + "Mon Oct 19 10:01:05: Done successfully. The CPU time used is "
+            + "42.5 seconds.\n"
+            + "\n"
+            + " MAX MEM: 512 Mbytes;  AVG MEM: 300 Mbytes\n"
+            + " SWAP: 1 Gbytes\n";
+
+    private static final String JOB_HISTORY = "\n"
+            + "Job <1234>, Job Name <build>, User <jenkins>\n"
+            + "Mon Oct 19 10:00:00: Submitted from host <master>, to Queue <"
+            + "normal>;\n"
+            + "Mon Oct 19 10:00:02: Pending: Job slot limit reached;\n"
+            + "Mon Oct 19 10:00:05: Dispatched 2 Task(s) on Host(s) <2*hostA>"
+            + ";\n"
+            + "\n"
+            + "MAX MEM: 2048 Kbytes;  AVG MEM: 1024 Kbytes\n"
+            + "\n"
+            + "Summary of time in seconds spent in various states:\n"
+            + "  PEND     PSUSP    RUN      USUSP    SSUSP    UNKWN    TOTAL\n"
+            + "  5        0        60       0        0        0        65\n";
+
+    @Test
+    public void parsesTheResourceUsageOfAJob() {
+        JobUsage usage = LSF.parseJobUsage("1234", JOB_DETAILS, JOB_HISTORY);
+        assertEquals("1234", usage.getJobId());
+        assertEquals("normal", usage.getQueue());
+        assertEquals(Double.valueOf(42.5),
+                Double.valueOf(usage.getCpuTime()));
+        assertEquals(Double.valueOf(512),
+                Double.valueOf(usage.getMaxMemory()));
+        assertEquals(Double.valueOf(1024), Double.valueOf(usage.getMaxSwap()));
+        assertEquals(5, usage.getPendingTime());
+        assertEquals(60, usage.getRunTime());
+        assertEquals(Arrays.asList("hostA", "hostB"),
+                usage.getExecutionHosts());
+        assertEquals(Arrays.asList("Job slot limit reached"),
+                usage.getPendingReasons());
+    }
+
+    @Test
+    public void leavesTheUnreportedUsageUnset() {
+        JobUsage usage = LSF.parseJobUsage("1234",
+                "Job <1234> is not found\n", "No matching job found\n");
+        assertEquals(null, usage.getQueue());
+        assertEquals(-1, usage.getRunTime());
+        assertEquals(Double.valueOf(-1),
+                Double.valueOf(usage.getMaxMemory()));
+        assertEquals(0, usage.getExecutionHosts().size());
+    }
+
+    @Test
+    public void parsesTheQueueOfAJob() {
+        String output = "JOBID   USER    STAT  QUEUE      FROM_HOST   "
+                + "EXEC_HOST   JOB_NAME   SUBMIT_TIME\n"
+                + "12345   jenkins RUN   long       master      hostA       "
+                + "build      Oct 19 10:00\n"
+                + "1234    jenkins RUN   short      master      hostB       "
+                + "build      Oct 19 10:00\n";
+        assertEquals("short", LSF.parseJobQueue("1234", output));
+        assertEquals("long", LSF.parseJobQueue("12345", output));
+        assertEquals(null, LSF.parseJobQueue("123", output));
+    }
+
+    @Test
+    public void treatsAJobLSFNoLongerKnowsAsExited() {
+        assertEquals("EXIT",
+                LSF.parseJobStatus("1234", "Job <1234> is not found\n"));
+        assertEquals("RUN", LSF.parseJobStatus("1234",
+                "JOBID USER    STAT  QUEUE\n1234  jenkins RUN   normal\n"));
+        assertEquals(null, LSF.parseJobStatus("1234",
+                "LSF is down. Please wait ...\n"));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import java.util.Arrays;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class RemoteShellTest {
+
+    @Test
+    public void reportsTheExitCodeOfEveryCommand() throws Exception {
+        List<RemoteShell.Result> results = RemoteShell.execute("/",
+                Arrays.asList("echo hello", "false", "exit 3",
+                        "missing-command-of-lsf-jenkins"), 10);
+        assertEquals(0, results.get(0).getExitCode());
+        assertEquals("hello\n", results.get(0).getOutput());
+        assertEquals(1, results.get(1).getExitCode());
+        assertFalse(results.get(1).isSuccessful());
+        assertEquals(3, results.get(2).getExitCode());
+        assertEquals(127, results.get(3).getExitCode());
+    }
+
+    @Test
+    public void killsCommandsWhichRunLongerThanTheTimeout()
+            throws Exception {
+        RemoteShell.Result result = RemoteShell.execute("/",
+                Arrays.asList("sleep 30"), 1).get(0);
+        assertTrue(result.isTimedOut());
+        assertFalse(result.isSuccessful());
+    }
+
+    @Test
+    public void keepsWorkingAfterATimeout() throws Exception {
+        RemoteShell.execute("/", Arrays.asList("sleep 30"), 1);
+        RemoteShell.Result result = RemoteShell.execute("/",
+                Arrays.asList("echo done"), 10).get(0);
+        assertTrue(result.isSuccessful());
+        assertEquals("done\n", result.getOutput());
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * The MIT License
+ *
+ * Copyright 2015 Laisvydas Skurevicius.
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN
+ * THE SOFTWARE.
+ */
+package org.jenkinsci.plugins.lsf;
+
+import static org.junit.Assert.assertEquals;
+import org.junit.Test;
+
+/**
+ * @author Laisvydas Skurevicius
+ */
+public class ResourceRequestTest {
+
+    @Test
+    public void dividesTheReservationAmongTheProcessors() {
+        ResourceRequest request = new ResourceRequest(4, 0, 0, 0)
+                .fromUsage(1000, 600, 10);
+        assertEquals(1100, request.getMemoryLimit());
+        assertEquals(275, request.getMemoryReservation());
+        assertEquals(11, request.getRunLimit());
+    }
+
+    @Test
+    public void reservesTheWholeMemoryOfASingleProcessorJob() {
+        ResourceRequest request = new ResourceRequest(0, 0, 0, 0)
+                .fromUsage(1001, 0, 0);
+        assertEquals(1001, request.getMemoryLimit());
+        assertEquals(1001, request.getMemoryReservation());
+        assertEquals(0, request.getRunLimit());
+    }
+
+    @Test
+    public void keepsTheRequestWithoutUsage() {
+        ResourceRequest request = new ResourceRequest(2, 512, 256, 30)
+                .fromUsage(-1, -1, 20);
+        assertEquals(512, request.getMemoryLimit());
+        assertEquals(256, request.getMemoryReservation());
+        assertEquals(30, request.getRunLimit());
+    }
+
+    @Test
+    public void scalesOnlyTheProcessorsOfAParallelPack() {
+        ResourceRequest request = new ResourceRequest(2, 512, 256, 30)
+                .forPack(3, true);
+        assertEquals(6, request.getProcessors());
+        assertEquals(512, request.getMemoryLimit());
+        assertEquals(256, request.getMemoryReservation());
+        assertEquals(30, request.getRunLimit());
+    }
+
+    @Test
+    public void addsUpTheRunLimitOfASequentialPack() {
+        ResourceRequest request = new ResourceRequest(0, 512, 256, 30)
+                .forPack(3, false);
+        assertEquals(0, request.getProcessors());
+        assertEquals(90, request.getRunLimit());
+    }
+
+    @Test
+    public void writesTheBsubOptions() {
+        assertEquals("-n 2 -M 512MB -R \"rusage[mem=256MB]\" -W 30 ",
+                new ResourceRequest(2, 512, 256, 30).toBsubOptions());
+        assertEquals("", new ResourceRequest(0, 0, 0, 0).toBsubOptions());
+    }
+}